@@ -0,0 +1,556 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Imports historical messages from a newline delimited JSON file, one Connecto message per line.
+ *
+ * The file is read through memory mappings, parsed and validated on several threads, and sent
+ * in batches through #{@link ConnectoAPI#deliver(ClientDelivery)} by several senders. Each line is
+ * sent as written, so the sentAt of the original message is preserved; lines without a sentAt,
+ * or that are not Connecto messages, are counted and skipped.
+ *
+ * The file offset up to which every line has been sent is written to the checkpoint file at most
+ * once a second, and again when the backfill stops, and is synced before it replaces the previous
+ * checkpoint. A backfill started again with the same checkpoint resumes from that offset, so only
+ * batches sent in the last second before it stopped, or in flight when it stopped, can be sent twice.
+ * Events and identify messages in a batch are sent, retried and counted separately.
+ *
+ * <pre>
+ * {@code
+ *     Backfill backfill = new Backfill(connectoApi, new File("events.ndjson"), new File("events.checkpoint"));
+ *     backfill.setProgressListener(listener, Duration.ofSeconds(10));
+ *     BackfillProgress result = backfill.run();
+ * }
+ * </pre>
+ */
+public class Backfill {
+
+    /**
+     * @param api the client used to send batches
+     * @param input a file with one JSON message per line
+     * @param checkpoint where the committed offset is kept, created if it does not exist
+     */
+    public Backfill(ConnectoAPI api, File input, File checkpoint) {
+        mApi = api;
+        mInput = input;
+        mCheckpoint = checkpoint;
+    }
+
+    /**
+     * @param parallelism how many threads parse and validate lines, by default one per core
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive");
+        }
+        mParallelism = parallelism;
+    }
+
+    /**
+     * @param senders how many batches are sent at once, by default the client's max in flight
+     */
+    public void setSendConcurrency(int senders) {
+        if (senders < 1) {
+            throw new IllegalArgumentException("senders must be positive");
+        }
+        mSenders = senders;
+    }
+
+    /**
+     * @param retries how many times a batch that could not be sent is tried again, waiting
+     *           twice as long each time, before the backfill stops
+     */
+    public void setMaxRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("retries must not be negative");
+        }
+        mMaxRetries = retries;
+    }
+
+    /**
+     * @param listener receives progress reports, including throughput and an estimated time to finish
+     * @param interval the time between reports
+     */
+    public void setProgressListener(BackfillListener listener, Duration interval) {
+        mListener = listener;
+        mProgressIntervalNanos = interval.toNanos();
+    }
+
+    /**
+     * @return the progress of the running or finished backfill
+     */
+    public synchronized BackfillProgress getProgress() {
+        return progress(false);
+    }
+
+    /**
+     * Sends every line after the checkpoint, and blocks until they are all sent.
+     *
+     * @return the final progress
+     * @throws IOException if the file or the checkpoint could not be read, or batches could not be sent
+     *      after retries. The checkpoint records how far the backfill got.
+     */
+    public BackfillProgress run() throws IOException {
+        long startOffset = readCheckpoint();
+        synchronized (this) {
+            mStartOffset = startOffset;
+            mCommittedOffset = startOffset;
+            mStartNanos = System.nanoTime();
+            mLastCheckpointNanos = mStartNanos;
+        }
+        synchronized (mCheckpointLock) {
+            mCheckpointedOffset = startOffset;
+        }
+
+        int senders = mSenders > 0 ? mSenders : mApi.getMaxInFlight();
+        ExecutorService parsers = Executors.newFixedThreadPool(mParallelism, new DaemonThreadFactory("connecto-backfill-parse"));
+        ExecutorService sending = Executors.newFixedThreadPool(senders, new DaemonThreadFactory("connecto-backfill-send"));
+        Semaphore sendPermits = new Semaphore(senders * 2);
+        try {
+            read(startOffset, parsers, sending, sendPermits);
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        } catch (RuntimeException e) {
+            failed(new IOException("Backfill stopped", e));
+            throw e;
+        } finally {
+            parsers.shutdownNow();
+            sending.shutdown();
+            // Senders stop retrying once a failure is recorded, so this waits for at most one request each.
+            sendPermits.acquireUninterruptibly(senders * 2);
+            saveCheckpoint();
+        }
+
+        BackfillProgress progress;
+        synchronized (this) {
+            mFinished = getFailure() == null;
+            progress = progress(mFinished);
+        }
+        if (mListener != null) {
+            mListener.onProgress(progress);
+        }
+        if (getFailure() != null) {
+            throw new IOException("Backfill stopped at offset " + progress.getCommittedOffset(), getFailure());
+        }
+        return progress;
+    }
+
+    /**
+     * Reads the file from the given offset, handing its batches to the senders.
+     */
+    private void read(long startOffset, ExecutorService parsers, ExecutorService sending, Semaphore sendPermits) throws IOException {
+        long lastReport = System.nanoTime();
+        FileChannel channel = FileChannel.open(mInput.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (startOffset > size) {
+                throw new IOException("Checkpoint " + mCheckpoint + " is past the end of " + mInput);
+            }
+            synchronized (this) {
+                mTotalBytes = size;
+            }
+
+            Deque<Future<List<Batch>>> parsing = new ArrayDeque<Future<List<Batch>>>();
+            long position = startOffset;
+            while (position < size && getFailure() == null) {
+                int windowLength = (int) Math.min(WINDOW_SIZE, size - position);
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, windowLength);
+                int end = windowLength;
+                if (position + windowLength < size) {
+                    end = lastNewline(window, windowLength) + 1;
+                    if (end == 0) {
+                        throw new IOException("Line at offset " + position + " is longer than " + WINDOW_SIZE + " bytes");
+                    }
+                }
+
+                for (int sliceStart = 0; sliceStart < end && getFailure() == null; ) {
+                    int sliceEnd = end;
+                    if (sliceStart + SLICE_SIZE < end) {
+                        int newline = nextNewline(window, sliceStart + SLICE_SIZE, end);
+                        sliceEnd = newline < 0 ? end : newline + 1;
+                    }
+                    parsing.add(parsers.submit(new Parse(window, sliceStart, sliceEnd, position)));
+                    while (parsing.size() >= mParallelism * 2) {
+                        dispatch(await(parsing.poll()), sending, sendPermits);
+                    }
+                    if (mListener != null && System.nanoTime() - lastReport >= mProgressIntervalNanos) {
+                        mListener.onProgress(getProgress());
+                        lastReport = System.nanoTime();
+                    }
+                    sliceStart = sliceEnd;
+                }
+                position += end;
+            }
+            while (! parsing.isEmpty() && getFailure() == null) {
+                dispatch(await(parsing.poll()), sending, sendPermits);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void dispatch(List<Batch> batches, ExecutorService sending, Semaphore sendPermits) {
+        for (Batch batch : batches) {
+            synchronized (this) {
+                batch.mSequence = mNextSequence++;
+                mInvalidLines += batch.mInvalidLines;
+            }
+            if (batch.mMessages.isEmpty()) {
+                committed(batch, 0, 0);
+                continue;
+            }
+            sendPermits.acquireUninterruptibly();
+            sending.execute(new Send(batch, sendPermits));
+        }
+    }
+
+    private List<Batch> await(Future<List<Batch>> parse) throws IOException {
+        try {
+            return parse.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + mInput, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not read " + mInput, e.getCause());
+        }
+    }
+
+    /**
+     * Records a finished batch and moves the committed offset past every batch finished in file order,
+     * writing it to the checkpoint if none has been written in the last second.
+     */
+    private void committed(Batch batch, long sent, long rejected) {
+        synchronized (this) {
+            mSentMessages += sent;
+            mRejectedMessages += rejected;
+            mFinishedBatches.put(batch.mSequence, batch.mEndOffset);
+
+            long committed = mCommittedOffset;
+            Long next;
+            while ((next = mFinishedBatches.remove(mNextCommit)) != null) {
+                committed = next;
+                mNextCommit++;
+            }
+            if (committed == mCommittedOffset) {
+                return;
+            }
+            mCommittedOffset = committed;
+
+            long now = System.nanoTime();
+            if (now - mLastCheckpointNanos < CHECKPOINT_INTERVAL_NANOS) {
+                return;
+            }
+            mLastCheckpointNanos = now;
+        }
+        saveCheckpoint();
+    }
+
+    /**
+     * Writes the committed offset to the checkpoint, unless it has been written already.
+     */
+    private void saveCheckpoint() {
+        synchronized (mCheckpointLock) {
+            long offset;
+            synchronized (this) {
+                offset = mCommittedOffset;
+            }
+            if (offset == mCheckpointedOffset) {
+                return;
+            }
+            try {
+                writeCheckpoint(offset);
+                mCheckpointedOffset = offset;
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    private synchronized void failed(IOException e) {
+        if (mFailure == null) {
+            mFailure = e;
+        }
+    }
+
+    private synchronized IOException getFailure() {
+        return mFailure;
+    }
+
+    private BackfillProgress progress(boolean finished) {
+        long elapsed = mStartNanos == 0 ? 0 : System.nanoTime() - mStartNanos;
+        return new BackfillProgress(mCommittedOffset, mStartOffset, mTotalBytes, mSentMessages,
+                                    mInvalidLines, mRejectedMessages, elapsed, finished);
+    }
+
+    /**
+     * @return the offset to start from, 0 if there is no checkpoint yet
+     * @throws IOException if the checkpoint exists but does not hold an offset, rather than starting over
+     */
+    private long readCheckpoint() throws IOException {
+        if (! mCheckpoint.exists()) {
+            return 0;
+        }
+        String saved = new String(Files.readAllBytes(mCheckpoint.toPath()), StandardCharsets.UTF_8).trim();
+        long offset;
+        try {
+            offset = Long.parseLong(saved);
+        } catch (NumberFormatException e) {
+            throw new IOException("Checkpoint " + mCheckpoint + " does not contain an offset", e);
+        }
+        if (offset < 0) {
+            throw new IOException("Checkpoint " + mCheckpoint + " does not contain an offset");
+        }
+        return offset;
+    }
+
+    private void writeCheckpoint(long offset) throws IOException {
+        File temp = new File(mCheckpoint.getPath() + ".tmp");
+        FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                           StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                out.write(bytes);
+            }
+            // Synced before the move, so a crash can't leave a checkpoint that names an empty file.
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), mCheckpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int lastNewline(ByteBuffer window, int end) {
+        for (int i = end - 1; i >= 0; i--) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int nextNewline(ByteBuffer window, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (window.get(i) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses and validates the lines of one slice of a mapped window into batches.
+     */
+    private class Parse implements Callable<List<Batch>> {
+        Parse(ByteBuffer window, int start, int end, long windowOffset) {
+            mWindow = window;
+            mStart = start;
+            mEnd = end;
+            mWindowOffset = windowOffset;
+        }
+
+        @Override
+        public List<Batch> call() {
+            byte[] bytes = new byte[mEnd - mStart];
+            ByteBuffer slice = mWindow.duplicate();
+            // Through Buffer, so this links on Java 8 as well
+            ((Buffer) slice).position(mStart);
+            slice.get(bytes);
+
+            int maxBatchSize = mApi.getMaxBatchSize();
+            List<Batch> batches = new ArrayList<Batch>();
+            Batch batch = new Batch();
+            int lineStart = 0;
+            for (int i = 0; i <= bytes.length; i++) {
+                if (i < bytes.length && bytes[i] != '\n') {
+                    continue;
+                }
+                int lineEnd = i;
+                if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+                    lineEnd--;
+                }
+                if (lineEnd > lineStart) {
+                    JSONObject message = parse(bytes, lineStart, lineEnd);
+                    if (message == null) {
+                        batch.mInvalidLines++;
+                    } else {
+                        batch.mMessages.add(message);
+                    }
+                }
+                lineStart = i + 1;
+
+                if (batch.mMessages.size() >= maxBatchSize) {
+                    batch.mEndOffset = mWindowOffset + mStart + Math.min(lineStart, bytes.length);
+                    batches.add(batch);
+                    batch = new Batch();
+                }
+            }
+            batch.mEndOffset = mWindowOffset + mEnd;
+            batches.add(batch);
+            return batches;
+        }
+
+        private JSONObject parse(byte[] bytes, int start, int end) {
+            try {
+                JSONObject message = new JSONObject(new String(bytes, start, end - start, StandardCharsets.UTF_8));
+                if (VALIDATOR.isValidMessage(message) && message.has("sentAt")) {
+                    return message;
+                }
+            } catch (JSONException e) {
+                // counted as invalid
+            }
+            return null;
+        }
+
+        private final ByteBuffer mWindow;
+        private final int mStart;
+        private final int mEnd;
+        private final long mWindowOffset;
+    }
+
+    private class Send implements Runnable {
+        Send(Batch batch, Semaphore permits) {
+            mBatch = batch;
+            mPermits = permits;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ClientDelivery delivery = new ClientDelivery();
+                for (JSONObject message : mBatch.mMessages) {
+                    delivery.addMessage(message);
+                }
+
+                // Sent one after the other, so a retry or a refusal of one doesn't resend or miscount the other.
+                long sent = 0;
+                long rejected = 0;
+                for (List<JSONObject> half : Arrays.asList(delivery.getEventsMessages(), delivery.getIdentifyMessages())) {
+                    if (half.isEmpty()) {
+                        continue;
+                    }
+                    int outcome = send(half);
+                    if (outcome == FAILED) {
+                        return;
+                    }
+                    if (outcome == SENT) {
+                        sent += half.size();
+                    } else {
+                        rejected += half.size();
+                    }
+                }
+                committed(mBatch, sent, rejected);
+            } catch (InterruptedException e) {
+                failed(new IOException("Interrupted while sending", e));
+            } catch (RuntimeException e) {
+                failed(new IOException("Could not send batch", e));
+            } finally {
+                mPermits.release();
+            }
+        }
+
+        /**
+         * @return SENT, REJECTED if refused as malformed, or FAILED once retries are used up or the backfill has failed
+         */
+        private int send(List<JSONObject> messages) throws InterruptedException {
+            ClientDelivery delivery = new ClientDelivery();
+            for (JSONObject message : messages) {
+                delivery.addMessage(message);
+            }
+            for (int attempt = 0; getFailure() == null; attempt++) {
+                try {
+                    mApi.deliver(delivery);
+                    return SENT;
+                } catch (ConnectoServerException e) {
+                    // Refused as malformed, sending it again won't help.
+                    return REJECTED;
+                } catch (IOException e) {
+                    if (attempt >= mMaxRetries) {
+                        failed(e);
+                        return FAILED;
+                    }
+                    Thread.sleep(RETRY_BACKOFF_MILLIS << attempt);
+                }
+            }
+            return FAILED;
+        }
+
+        private final Batch mBatch;
+        private final Semaphore mPermits;
+    }
+
+    private static class Batch {
+        final List<JSONObject> mMessages = new ArrayList<JSONObject>();
+        int mInvalidLines = 0;
+        long mEndOffset;
+        long mSequence;
+    }
+
+    private final ConnectoAPI mApi;
+    private final File mInput;
+    private final File mCheckpoint;
+    private int mParallelism = Runtime.getRuntime().availableProcessors();
+    private int mSenders = 0;
+    private int mMaxRetries = DEFAULT_MAX_RETRIES;
+    private BackfillListener mListener = null;
+    private long mProgressIntervalNanos = 0;
+
+    // Guarded by this
+    private long mStartOffset = 0;
+    private long mCommittedOffset = 0;
+    private long mTotalBytes = 0;
+    private long mSentMessages = 0;
+    private long mInvalidLines = 0;
+    private long mRejectedMessages = 0;
+    private long mStartNanos = 0;
+    private boolean mFinished = false;
+    private long mNextSequence = 0;
+    private long mNextCommit = 0;
+    private final Map<Long, Long> mFinishedBatches = new HashMap<Long, Long>();
+    private IOException mFailure = null;
+    private long mLastCheckpointNanos = 0;
+
+    // Serializes checkpoint writes, taken before this
+    private final Object mCheckpointLock = new Object();
+    private long mCheckpointedOffset = 0;
+
+    private static final ClientDelivery VALIDATOR = new ClientDelivery();
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int SLICE_SIZE = 1024 * 1024;
+    private static final int DEFAULT_MAX_RETRIES = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 500;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Outcomes of Send.send()
+    private static final int SENT = 0;
+    private static final int REJECTED = 1;
+    private static final int FAILED = 2;
+}
@@ -0,0 +1,14 @@
+package io.connecto.connectoapi;
+
+/**
+ * Receives progress reports from a running #{@link Backfill}.
+ *
+ * @see Backfill#setProgressListener(BackfillListener, java.time.Duration)
+ */
+public interface BackfillListener {
+
+    /**
+     * Called on the thread running the backfill, at the reporting interval and once when it finishes.
+     */
+    void onProgress(BackfillProgress progress);
+}
@@ -0,0 +1,90 @@
+package io.connecto.connectoapi;
+
+import java.time.Duration;
+
+/**
+ * A snapshot of the progress of a #{@link Backfill}.
+ */
+public class BackfillProgress {
+
+    /* package */
+    BackfillProgress(long committedOffset, long startOffset, long totalBytes, long sentMessages,
+                     long invalidLines, long rejectedMessages, long elapsedNanos, boolean finished) {
+        mCommittedOffset = committedOffset;
+        mStartOffset = startOffset;
+        mTotalBytes = totalBytes;
+        mSentMessages = sentMessages;
+        mInvalidLines = invalidLines;
+        mRejectedMessages = rejectedMessages;
+        mElapsedNanos = elapsedNanos;
+        mFinished = finished;
+    }
+
+    /**
+     * @return the file offset up to which every line has been sent, where a resumed backfill starts
+     */
+    public long getCommittedOffset() { return mCommittedOffset; }
+
+    /**
+     * @return the size of the input file
+     */
+    public long getTotalBytes() { return mTotalBytes; }
+
+    /**
+     * @return messages accepted by the events endpoint in this run
+     */
+    public long getSentMessages() { return mSentMessages; }
+
+    /**
+     * @return lines skipped because they were not valid Connecto messages with a sentAt
+     */
+    public long getInvalidLines() { return mInvalidLines; }
+
+    /**
+     * @return messages the events endpoint refused as malformed
+     */
+    public long getRejectedMessages() { return mRejectedMessages; }
+
+    public Duration getElapsed() { return Duration.ofNanos(mElapsedNanos); }
+
+    /**
+     * @return messages sent per second in this run
+     */
+    public double getMessagesPerSecond() {
+        return mElapsedNanos == 0 ? 0 : mSentMessages * 1e9 / mElapsedNanos;
+    }
+
+    /**
+     * @return the estimated time to finish, from the rate at which this run has moved through the file,
+     *      or null before there is enough progress to estimate
+     */
+    public Duration getEstimatedRemaining() {
+        long done = mCommittedOffset - mStartOffset;
+        if (mFinished) {
+            return Duration.ZERO;
+        }
+        if (done <= 0) {
+            return null;
+        }
+        return Duration.ofNanos((long) ((double) mElapsedNanos / done * (mTotalBytes - mCommittedOffset)));
+    }
+
+    public boolean isFinished() { return mFinished; }
+
+    @Override
+    public String toString() {
+        Duration eta = getEstimatedRemaining();
+        return String.format("BackfillProgress(%.1f%%, sentMessages=%d, invalidLines=%d, rejectedMessages=%d, %.0f messages/s, eta=%s)",
+                mTotalBytes == 0 ? 100.0 : 100.0 * mCommittedOffset / mTotalBytes, mSentMessages, mInvalidLines,
+                mRejectedMessages, getMessagesPerSecond(), eta == null ? "unknown" : eta.toString());
+    }
+
+    private final long mCommittedOffset;
+    private final long mStartOffset;
+    private final long mTotalBytes;
+    private final long mSentMessages;
+    private final long mInvalidLines;
+    private final long mRejectedMessages;
+    private final long mElapsedNanos;
+    private final boolean mFinished;
+}
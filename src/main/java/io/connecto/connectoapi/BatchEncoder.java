@@ -0,0 +1,33 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Writes a batch of Connecto messages in the wire format sent to the import endpoint.
+ *
+ * The format is announced to the server with the encoder's content type.
+ *
+ * @see ConnectoAPI#setBatchEncoder(BatchEncoder)
+ * @see JsonBatchEncoder
+ * @see MessagePackBatchEncoder
+ */
+public interface BatchEncoder {
+
+    /**
+     * @return the Content-Type header sent with encoded batches
+     */
+    String getContentType();
+
+    /**
+     * Writes the given messages as a single batch.
+     *
+     * @param messages JSONObjects formatted by #{@link MessageBuilder}
+     * @param out the stream to write the encoded batch to
+     * @throws IOException if the stream cannot be written
+     */
+    void encode(List<JSONObject> messages, OutputStream out) throws IOException;
+}
@@ -4,7 +4,11 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A ClientDelivery can be used to send multiple messages to Connecto.
@@ -72,6 +76,38 @@ public class ClientDelivery {
         return mIdentifyMessages;
     }
 
+    /**
+     * Groups messages whose #{@link #SHARED_FIELDS} are identical, keeping the order of
+     * messages within each group.
+     */
+    /* package */
+    static Map<String, List<JSONObject>> groupBySharedContext(List<JSONObject> messages) {
+        Map<String, List<JSONObject>> groups = new LinkedHashMap<String, List<JSONObject>>();
+        StringBuilder key = new StringBuilder();
+        for (JSONObject message : messages) {
+            key.setLength(0);
+            for (String field : SHARED_FIELDS) {
+                Object value = message.opt(field);
+                key.append(value == null ? "\u0001" : value.toString()).append('\u0000');
+            }
+
+            String groupKey = key.toString();
+            List<JSONObject> group = groups.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<JSONObject>();
+                groups.put(groupKey, group);
+            }
+            group.add(message);
+        }
+        return groups;
+    }
+
+    /**
+     * Fields set by #{@link MessageBuilder#getDefaultPayload(String)} that are usually the same for every message in a batch.
+     */
+    /* package */
+    static final List<String> SHARED_FIELDS = Collections.unmodifiableList(Arrays.asList("writeKey", "channel", "sentAt", "context"));
+
     private final List<JSONObject> mEventsMessages = new ArrayList<JSONObject>();
     private final List<JSONObject> mIdentifyMessages = new ArrayList<JSONObject>();
 }
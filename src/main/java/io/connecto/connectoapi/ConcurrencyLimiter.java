@@ -0,0 +1,135 @@
+package io.connecto.connectoapi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits concurrent requests to one endpoint, adapting the limit to the latency and errors seen.
+ *
+ * The limit grows additively, by about one request per round trip, while requests are answered
+ * close to the best recent round trip time and the limit is actually being used. It shrinks
+ * multiplicatively when round trips stretch beyond a tolerance of that best time, which means
+ * requests are queueing at the server, and more sharply when requests fail. Decreases happen at
+ * most once per round trip, so one slow burst is not counted many times.
+ */
+/* package */
+class ConcurrencyLimiter {
+
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= minLimit <= maxLimit");
+        }
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * @return true if a request may start now, in which case #{@link #release(long, boolean)} must follow
+     */
+    synchronized boolean tryAcquire() {
+        if (mInFlight < getLimit()) {
+            mInFlight++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits for a request to be allowed.
+     *
+     * @return false if the timeout passed first
+     */
+    synchronized boolean acquire(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (mInFlight >= getLimit()) {
+            remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        mInFlight++;
+        return true;
+    }
+
+    /**
+     * Records the outcome of a request started with #{@link #tryAcquire()} or #{@link #acquire(long, TimeUnit)}.
+     *
+     * @param rttNanos how long the request took
+     * @param failed true if the request timed out or could not be completed
+     */
+    synchronized void release(long rttNanos, boolean failed) {
+        int inFlight = mInFlight--;
+        long now = System.nanoTime();
+
+        if (failed) {
+            decrease(ERROR_BACKOFF, now);
+        } else {
+            updateMinRtt(rttNanos);
+            if (rttNanos > mMinRttNanos * RTT_TOLERANCE) {
+                decrease(LATENCY_BACKOFF, now);
+            } else if (inFlight * 2 >= mLimit) {
+                // Only grow while the limit is in use, otherwise an idle client would grow it without bound.
+                mLimit = Math.min(mMaxLimit, mLimit + 1.0 / mLimit);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Gives back a permit taken for a request that was never sent, without counting it as an outcome.
+     */
+    synchronized void cancel() {
+        mInFlight--;
+        notifyAll();
+    }
+
+    synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    private void decrease(double factor, long now) {
+        long minRtt = mMinRttNanos == Long.MAX_VALUE ? 0 : mMinRttNanos;
+        if (now - mLastDecreaseNanos < minRtt) {
+            return;
+        }
+        mLimit = Math.max(mMinLimit, mLimit * factor);
+        mLastDecreaseNanos = now;
+    }
+
+    /**
+     * Tracks the best round trip in a window of recent requests, so the baseline follows the
+     * server if its unloaded latency changes.
+     */
+    private void updateMinRtt(long rttNanos) {
+        mWindowMinRttNanos = Math.min(mWindowMinRttNanos, rttNanos);
+        if (++mWindowSamples >= RTT_WINDOW || mMinRttNanos == Long.MAX_VALUE) {
+            mMinRttNanos = mWindowMinRttNanos;
+            if (mWindowSamples >= RTT_WINDOW) {
+                mWindowMinRttNanos = Long.MAX_VALUE;
+                mWindowSamples = 0;
+            }
+        } else {
+            mMinRttNanos = Math.min(mMinRttNanos, rttNanos);
+        }
+    }
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private double mLimit;
+    private int mInFlight = 0;
+    private long mMinRttNanos = Long.MAX_VALUE;
+    private long mWindowMinRttNanos = Long.MAX_VALUE;
+    private int mWindowSamples = 0;
+    private long mLastDecreaseNanos = Long.MIN_VALUE / 2;
+
+    private static final double RTT_TOLERANCE = 2.0;
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double ERROR_BACKOFF = 0.5;
+    private static final int RTT_WINDOW = 500;
+}
@@ -6,8 +6,31 @@ import org.json.JSONObject;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Simple interface to the Connecto tracking API, intended for use in
@@ -18,9 +41,10 @@ import java.util.List;
  * The Java API doesn't provide or assume any threading model, and is designed
  * such that recording events and sending them can be easily separated.
  *
- *
+ * Messages may also be handed to the client with #{@link #enqueue(JSONObject)}, in which
+ * case the client owns them and sends them in the background, in batches, until it is closed.
  */
-public class ConnectoAPI {
+public class ConnectoAPI implements AutoCloseable {
 
     /**
      * Constructs a ConnectoAPI object associated with the production, Connecto services.
@@ -39,18 +63,287 @@ public class ConnectoAPI {
      * @see #ConnectoAPI()
      */
     public ConnectoAPI(String endpoint, String rulesendpoint, int timeout) {
-        mEventsEndpoint = endpoint;
+        mEndpoints = new EndpointPool(Collections.singletonList(endpoint), EndpointRouting.ROUND_ROBIN);
         mRulesEndPoint = rulesendpoint;
-        mTimeoutMilliseconds = timeout;
+        mConnectTimeoutMilliseconds = timeout;
+        mReadTimeoutMilliseconds = timeout;
     }
 
     /**
      * Set timeout for HTTP cals.
      *
-     * @param timeoutInMs an integer representing milliseconds
+     * @param timeoutInMs an integer representing milliseconds, or 0 to wait indefinitely
+     * @throws IllegalArgumentException if the timeout is negative
      */
     public void setTimeout(int timeoutInMs) {
-        mTimeoutMilliseconds = timeoutInMs;
+        checkTimeout(timeoutInMs);
+        mConnectTimeoutMilliseconds = timeoutInMs;
+        mReadTimeoutMilliseconds = timeoutInMs;
+    }
+
+    /**
+     * Set how long HTTP calls wait to connect.
+     *
+     * @param timeoutInMs an integer representing milliseconds, or 0 to wait indefinitely
+     * @throws IllegalArgumentException if the timeout is negative
+     */
+    public void setConnectTimeout(int timeoutInMs) {
+        checkTimeout(timeoutInMs);
+        mConnectTimeoutMilliseconds = timeoutInMs;
+    }
+
+    /**
+     * Set how long HTTP calls wait for a response once connected.
+     *
+     * @param timeoutInMs an integer representing milliseconds, or 0 to wait indefinitely
+     * @throws IllegalArgumentException if the timeout is negative
+     */
+    public void setReadTimeout(int timeoutInMs) {
+        checkTimeout(timeoutInMs);
+        mReadTimeoutMilliseconds = timeoutInMs;
+    }
+
+    private static void checkTimeout(int timeoutInMs) {
+        if (timeoutInMs < 0) {
+            throw new IllegalArgumentException("timeoutInMs must not be negative");
+        }
+    }
+
+    public int getConnectTimeout() {
+        return mConnectTimeoutMilliseconds;
+    }
+
+    public int getReadTimeout() {
+        return mReadTimeoutMilliseconds;
+    }
+
+    /**
+     * Sets the most messages sent in a single request. Takes effect from the next batch,
+     * including for messages already queued.
+     *
+     * @param maxBatchSize between 1 and #{@link Config#MAX_MESSAGE_SIZE}
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1 || maxBatchSize > Config.MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("maxBatchSize must be between 1 and " + Config.MAX_MESSAGE_SIZE);
+        }
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    public int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * Spreads batches across several events endpoints, for example regional ingest proxies.
+     * Replaces the endpoint given to the constructor, and may be called at any time.
+     *
+     * Endpoints that fail several sends in a row, or answer much more slowly than the others,
+     * stop receiving batches until a periodic health check reaches them again. A batch that
+     * cannot be sent to its endpoint is retried once on another healthy endpoint.
+     *
+     * @param endpoints URLs that will accept Connecto events and identify messages
+     * @param routing how batches are assigned to endpoints
+     * @see #setEndpointHealthCheckInterval(Duration)
+     */
+    public void setEventsEndpoints(List<String> endpoints, EndpointRouting routing) {
+        EndpointPool pool = new EndpointPool(new ArrayList<String>(endpoints), routing);
+        EndpointPool previous;
+        synchronized (mQueueLock) {
+            if (mClosed) {
+                throw new IllegalStateException("ConnectoAPI has been closed");
+            }
+            previous = mEndpoints;
+            mEndpoints = pool;
+            pool.startHealthChecks(this, mHealthCheckInterval);
+        }
+        previous.stopHealthChecks();
+    }
+
+    /**
+     * Sets how often every events endpoint is checked, to re-add endpoints that were ejected
+     * and eject endpoints that stopped answering.
+     *
+     * @param interval the time between health checks
+     * @see #setEventsEndpoints(List, EndpointRouting)
+     */
+    public void setEndpointHealthCheckInterval(Duration interval) {
+        if (interval.isNegative() || interval.isZero()) {
+            throw new IllegalArgumentException("interval must be positive");
+        }
+        synchronized (mQueueLock) {
+            mHealthCheckInterval = interval;
+            if (! mClosed) {
+                mEndpoints.stopHealthChecks();
+                mEndpoints.startHealthChecks(this, interval);
+            }
+        }
+    }
+
+    /**
+     * @return the events endpoints currently receiving batches
+     */
+    public List<String> getHealthyEndpoints() {
+        return mEndpoints.getHealthyEndpoints();
+    }
+
+    /**
+     * Sets the wire format used to send batches of messages. Batches are sent as JSON by default.
+     *
+     * @param encoder the format to send, the server must accept its content type
+     * @see MessagePackBatchEncoder
+     */
+    public void setBatchEncoder(BatchEncoder encoder) {
+        mBatchEncoder = encoder;
+    }
+
+    /**
+     * Writes batches to local files instead of sending them to the events endpoints. A batch
+     * counts as sent once the sink has written and synced it. The sink is not closed with this
+     * client, close it after #{@link #close()} returns.
+     *
+     * @param sink where batches are written, or null to send them over HTTP again
+     */
+    public void setFileSink(FileSink sink) {
+        mFileSink = sink;
+    }
+
+    /* package */
+    FileSink getFileSink() {
+        return mFileSink;
+    }
+
+    /**
+     * Hands batches to a #{@link ForwardingAgent} on this host instead of sending them to the
+     * events endpoints, over one connection kept open between batches. A batch counts as sent once
+     * the agent has queued it, and skips the events endpoints' health checks, failover and concurrency
+     * limit, which the agent applies to its own sends. Meant for short-lived processes, which can deliver a few messages and
+     * exit without waiting on a connection to Connecto. A file sink, if set, takes precedence.
+     *
+     * @param address the agent's address, or null to send batches over HTTP again
+     * @param token the token the agent was started with
+     * @see ForwardingAgent#getAddress()
+     */
+    public void setForwardingAgent(InetSocketAddress address, String token) {
+        if (address != null && (token == null || token.isEmpty())) {
+            throw new IllegalArgumentException("A token is needed to connect to the agent");
+        }
+        ForwardingAgent.Connection previous = mAgent;
+        mAgent = address == null ? null : new ForwardingAgent.Connection(address, token);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Reports the outcome of every batch sent, with the ids of the messages accepted and failed,
+     * on a callback thread owned by this ConnectoAPI. Results are reported once per batch, so
+     * callers can track delivery without a future or a callback per message. #{@link #close()}
+     * waits for results to be reported, within its deadline.
+     *
+     * @param listener receives results, or null to stop reporting them
+     * @throws IllegalStateException if this ConnectoAPI has been closed
+     * @see #setDeliveryListener(DeliveryListener, Executor)
+     */
+    public void setDeliveryListener(DeliveryListener listener) {
+        if (listener == null) {
+            setDeliveryListener(null, null);
+            return;
+        }
+        synchronized (mQueueLock) {
+            checkOpen();
+            if (mOwnedCallbackExecutor == null) {
+                mOwnedCallbackExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("connecto-delivery-callbacks"));
+            }
+            setDeliveryListener(listener, mOwnedCallbackExecutor);
+        }
+    }
+
+    /**
+     * Reports the outcome of every batch sent on the given executor.
+     *
+     * @param listener receives results, or null to stop reporting them
+     * @param callbackExecutor runs the listener, should not run it on the calling thread since
+     *          batches are reported by the threads that send them
+     * @throws IllegalStateException if this ConnectoAPI has been closed
+     * @see #setDeliveryListener(DeliveryListener)
+     */
+    public void setDeliveryListener(DeliveryListener listener, Executor callbackExecutor) {
+        synchronized (mQueueLock) {
+            checkOpen();
+            mDeliveryListener = listener == null ? null : new ListenerRegistration(listener, callbackExecutor);
+        }
+    }
+
+    /* package */
+    DeliveryListener getDeliveryListener() {
+        ListenerRegistration registration = mDeliveryListener;
+        return registration == null ? null : registration.mListener;
+    }
+
+    /* package */
+    void notifyDelivery(final DeliveryResult result) {
+        final ListenerRegistration registration = mDeliveryListener;
+        if (registration == null) {
+            return;
+        }
+        try {
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.mListener.onDelivery(result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed while the batch was in flight, after its deadline.
+        }
+    }
+
+    private void reportDelivery(List<JSONObject> accepted, List<JSONObject> failed, long latencyNanos, int attempts) {
+        notifyDelivery(new DeliveryResult(null, messageIds(accepted), messageIds(failed), latencyNanos, attempts));
+    }
+
+    private static List<String> messageIds(List<JSONObject> messages) {
+        List<String> ids = new ArrayList<String>(messages.size());
+        for (JSONObject message : messages) {
+            ids.add(message.optString("messageId"));
+        }
+        return ids;
+    }
+
+    /* package */
+    ForwardingAgent.Connection getForwardingAgent() {
+        return mAgent;
+    }
+
+    /**
+     * Hands a batch of newline terminated JSON messages to the forwarding agent.
+     *
+     * @param messages the number of messages in the batch
+     * @return the number of messages the agent queued, from the start of the batch
+     */
+    /* package */
+    int forward(ForwardingAgent.Connection agent, PooledBuffer ndjson, int messages) throws IOException {
+        int queued = agent.forward(ndjson.array(), ndjson.size(), mConnectTimeoutMilliseconds, mReadTimeoutMilliseconds);
+        return Math.max(0, Math.min(queued, messages));
+    }
+
+    /**
+     * Enables hedged requests for #{@link #getSegments(String, String, Duration, SegmentResponse)}.
+     * When a lookup has not answered within the given percentile of recent lookup latencies,
+     * a second request is sent and whichever answers first is used.
+     *
+     * @param percentile between 0 and 1, for example 0.95, or 0 to disable hedging
+     */
+    public void setSegmentHedgePercentile(double percentile) {
+        if (percentile < 0 || percentile >= 1) {
+            throw new IllegalArgumentException("percentile must be at least 0 and less than 1");
+        }
+        mHedgePercentile = percentile;
+    }
+
+    public double getSegmentHedgePercentile() {
+        return mHedgePercentile;
     }
 
     /**
@@ -79,13 +372,536 @@ public class ConnectoAPI {
      * @see ClientDelivery
      */
     public void deliver(ClientDelivery toSend) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("ConnectoAPI has been closed");
+        }
 
-        String postUrl = mEventsEndpoint;
         List<JSONObject> events = toSend.getEventsMessages();
-        sendMessages(events, postUrl);
+        sendMessages(events);
 
         List<JSONObject> user = toSend.getIdentifyMessages();
-        sendMessages(user, postUrl);
+        TraitDeltaCache traits = mTraitDeltas;
+        if (traits == null) {
+            sendMessages(user);
+            return;
+        }
+
+        List<JSONObject> changed = new ArrayList<JSONObject>(user.size());
+        Map<JSONObject, TraitDeltaCache.Delta> deltas = new IdentityHashMap<JSONObject, TraitDeltaCache.Delta>();
+        for (JSONObject message : user) {
+            TraitDeltaCache.Delta delta = traits.filter(message);
+            if (delta != null) {
+                changed.add(delta.getMessage());
+                deltas.put(delta.getMessage(), delta);
+            }
+        }
+        sendMessages(changed, deltas);
+    }
+
+    /**
+     * Sends only the traits that changed since a user's last acknowledged identify message,
+     * dropping identify messages in which nothing changed. Applies to #{@link #deliver(ClientDelivery)}
+     * and #{@link #enqueue(JSONObject)}. Identify messages from an #{@link EventWriter} are decoded to be compared.
+     *
+     * The last trait values sent are remembered as 64 bit hashes for the most recently identified users.
+     * Values are only remembered once the server has accepted them, so a failed identify is sent in full again.
+     * Only use this if nothing else changes a user's traits, since a value changed elsewhere and then
+     * set back here would not be sent.
+     *
+     * @param maxUsers how many users to remember, or 0 to send every identify message in full
+     */
+    public void setIdentifyDeltaSuppression(int maxUsers) {
+        mTraitDeltas = maxUsers > 0 ? new TraitDeltaCache(maxUsers) : null;
+    }
+
+    /**
+     * @return how many identify messages were dropped because none of their traits had changed
+     * @see #setIdentifyDeltaSuppression(int)
+     */
+    public long getSuppressedIdentifies() {
+        TraitDeltaCache traits = mTraitDeltas;
+        return traits == null ? 0 : traits.getSuppressed();
+    }
+
+    /* package */
+    TraitDeltaCache getTraitDeltas() {
+        return mTraitDeltas;
+    }
+
+    /**
+     * Sets the lanes used to batch and send messages queued with #{@link #enqueue(JSONObject)}.
+     * Messages no lane accepts are sent through a default lane. Must be called before the first message is queued.
+     *
+     * @param lanes the delivery lanes, in any order
+     * @throws IllegalStateException if messages have already been queued
+     * @see DeliveryLane
+     */
+    public void setDeliveryLanes(List<DeliveryLane> lanes) {
+        synchronized (mQueueLock) {
+            checkQueueNotStarted();
+            mDeliveryLanes = new ArrayList<DeliveryLane>(lanes);
+        }
+    }
+
+    /**
+     * Sets how many requests queued messages may have in flight at once. The limit is shared
+     * between delivery lanes by weight, every lane receiving at least one request.
+     * May be changed while messages are queued, requests already in flight are not interrupted.
+     * With #{@link #setAdaptiveConcurrency(boolean, int)}, this is only the starting limit.
+     *
+     * @param maxInFlight the most concurrent requests for queued messages
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+        synchronized (mQueueLock) {
+            mMaxInFlight = maxInFlight;
+            if (mQueue != null) {
+                mQueue.setMaxInFlight(maxInFlight);
+            }
+        }
+    }
+
+    /**
+     * Replaces the fixed in-flight limits with limits that adapt to the endpoints. Requests to the
+     * events endpoint and to the rules endpoint each get a limit that grows while round trips stay
+     * near their best recent time, and shrinks when they stretch or requests fail.
+     *
+     * Queued batches beyond the limit wait in the queue, #{@link #deliver(ClientDelivery)} waits up to
+     * the read timeout for room, and segment lookups beyond the limit are shed with an IOException,
+     * which a #{@link SegmentCache} answers with its stale entry.
+     *
+     * @param enabled true to adapt the limits, false to return to #{@link #setMaxInFlight(int)}
+     * @param maxLimit the most concurrent requests either limit may grow to
+     */
+    public void setAdaptiveConcurrency(boolean enabled, int maxLimit) {
+        synchronized (mQueueLock) {
+            if (enabled) {
+                mImportLimiter = new ConcurrencyLimiter(mMaxInFlight, 1, maxLimit);
+                mRulesLimiter = new ConcurrencyLimiter(mMaxInFlight, 1, maxLimit);
+            } else {
+                mImportLimiter = null;
+                mRulesLimiter = null;
+                if (mQueue != null) {
+                    mQueue.setMaxInFlight(mMaxInFlight);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the current limit on concurrent requests to the events endpoint
+     * @see #setAdaptiveConcurrency(boolean, int)
+     */
+    public int getImportConcurrencyLimit() {
+        ConcurrencyLimiter limiter = mImportLimiter;
+        return limiter == null ? getMaxInFlight() : limiter.getLimit();
+    }
+
+    /**
+     * @return the current limit on concurrent segment lookups, or 0 if they are not limited
+     * @see #setAdaptiveConcurrency(boolean, int)
+     */
+    public int getRulesConcurrencyLimit() {
+        ConcurrencyLimiter limiter = mRulesLimiter;
+        return limiter == null ? 0 : limiter.getLimit();
+    }
+
+    public int getMaxInFlight() {
+        synchronized (mQueueLock) {
+            return mMaxInFlight;
+        }
+    }
+
+    /**
+     * Changes how long messages in the named delivery lane wait for their batch to fill.
+     * May be called while messages are queued, the new linger time applies from the lane's next batch.
+     *
+     * @param laneName the name of a configured lane, or "default" for the lane added when no configured lane
+     *                 accepts every message
+     * @param lingerMillis the longest a message waits before being sent
+     * @throws IllegalArgumentException if there is no lane with that name
+     */
+    public void setLaneLingerMillis(String laneName, long lingerMillis) {
+        if (lingerMillis < 0) {
+            throw new IllegalArgumentException("lingerMillis must not be negative");
+        }
+        synchronized (mQueueLock) {
+            if (mQueue != null) {
+                if (! mQueue.setLingerMillis(laneName, lingerMillis)) {
+                    throw new IllegalArgumentException("No delivery lane named " + laneName);
+                }
+                return;
+            }
+
+            List<DeliveryLane> lanes = new ArrayList<DeliveryLane>(mDeliveryLanes.size() + 1);
+            boolean found = false;
+            boolean hasDefault = false;
+            for (DeliveryLane lane : mDeliveryLanes) {
+                if (lane.getName().equals(laneName)) {
+                    lanes.add(lane.withLingerMillis(lingerMillis));
+                    found = true;
+                } else {
+                    lanes.add(lane);
+                }
+                hasDefault |= lane.acceptsAll();
+            }
+            if (! found && ! hasDefault && laneName.equals("default")) {
+                // The queue would add this lane itself, it is added now to carry the linger time.
+                lanes.add(DeliveryQueue.implicitDefaultLane(lingerMillis));
+                found = true;
+            }
+            if (! found) {
+                throw new IllegalArgumentException("No delivery lane named " + laneName);
+            }
+            mDeliveryLanes = lanes;
+        }
+    }
+
+    /**
+     * Sets the most memory, measured as the encoded size of messages, that messages queued with
+     * #{@link #enqueue(JSONObject)} may hold before the overflow policy applies.
+     * Must be called before the first message is queued.
+     *
+     * @param maxQueuedBytes the byte budget of the delivery queue
+     * @throws IllegalStateException if messages have already been queued
+     * @see #setOverflowPolicy(OverflowPolicy)
+     */
+    public void setMaxQueuedBytes(long maxQueuedBytes) {
+        if (maxQueuedBytes < 1) {
+            throw new IllegalArgumentException("maxQueuedBytes must be positive");
+        }
+        synchronized (mQueueLock) {
+            checkQueueNotStarted();
+            mMaxQueuedBytes = maxQueuedBytes;
+        }
+    }
+
+    /**
+     * Sets what happens to messages queued while the delivery queue is over its byte budget.
+     * Must be called before the first message is queued.
+     *
+     * @param policy the overflow policy, #{@link OverflowPolicy#DROP_NEWEST} by default
+     * @throws IllegalStateException if messages have already been queued
+     * @see #setOverflowBlockTimeout(Duration)
+     * @see #setSpillDirectory(File)
+     */
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        synchronized (mQueueLock) {
+            checkQueueNotStarted();
+            mOverflowPolicy = policy;
+        }
+    }
+
+    /**
+     * Sets how long #{@link #enqueue(JSONObject)} waits for room under #{@link OverflowPolicy#BLOCK}.
+     * Must be called before the first message is queued.
+     *
+     * @throws IllegalStateException if messages have already been queued
+     */
+    public void setOverflowBlockTimeout(Duration timeout) {
+        synchronized (mQueueLock) {
+            checkQueueNotStarted();
+            mOverflowBlockTimeout = timeout;
+        }
+    }
+
+    /**
+     * Sets where messages are written under #{@link OverflowPolicy#SPILL_TO_DISK}.
+     * Must be called before the first message is queued.
+     *
+     * @param directory a local directory, the system temporary directory by default
+     * @throws IllegalStateException if messages have already been queued
+     */
+    public void setSpillDirectory(File directory) {
+        synchronized (mQueueLock) {
+            checkQueueNotStarted();
+            mSpillDirectory = directory;
+        }
+    }
+
+    /**
+     * Stores messages queued with #{@link #enqueue(JSONObject)} encoded, in direct memory
+     * allocated up front, rather than as JSONObjects on the heap. Messages that do not fit
+     * in the arena are kept on the heap. Must be called before the first message is queued.
+     *
+     * @param arenaBytes the size of the arena, or 0 to keep queued messages on the heap
+     * @throws IllegalStateException if messages have already been queued
+     */
+    public void setOffHeapQueueBytes(long arenaBytes) {
+        synchronized (mQueueLock) {
+            checkQueueNotStarted();
+            mOffHeapQueueBytes = arenaBytes;
+        }
+    }
+
+    /**
+     * Records how long queued messages spend being queued, batched, waiting to be sent and
+     * being sent. Messages built by a #{@link MessageBuilder} with tracing enabled also record
+     * how long they took to be queued. Must be called before the first message is queued.
+     *
+     * @param enabled true to record lifecycle latencies
+     * @param exemplarSampleRate the fraction of messages, between 0 and 1, whose complete trace is kept
+     * @throws IllegalStateException if messages have already been queued
+     * @see #getLifecycleStats()
+     */
+    public void setLifecycleTracing(boolean enabled, double exemplarSampleRate) {
+        synchronized (mQueueLock) {
+            checkQueueNotStarted();
+            mTracer = enabled ? new LifecycleTracer(exemplarSampleRate) : null;
+        }
+    }
+
+    /**
+     * Changes the fraction of queued messages whose complete traces are kept, while messages are queued.
+     *
+     * @param exemplarSampleRate between 0 and 1
+     * @throws IllegalStateException if lifecycle tracing is not enabled
+     * @see #setLifecycleTracing(boolean, double)
+     */
+    public void setLifecycleSampleRate(double exemplarSampleRate) {
+        if (exemplarSampleRate < 0 || exemplarSampleRate > 1) {
+            throw new IllegalArgumentException("exemplarSampleRate must be between 0 and 1");
+        }
+        synchronized (mQueueLock) {
+            if (mTracer == null) {
+                throw new IllegalStateException("Lifecycle tracing is not enabled");
+            }
+            mTracer.setExemplarSampleRate(exemplarSampleRate);
+        }
+    }
+
+    /**
+     * @return the fraction of queued messages whose complete traces are kept, 0 if tracing is not enabled
+     */
+    public double getLifecycleSampleRate() {
+        synchronized (mQueueLock) {
+            return mTracer == null ? 0 : mTracer.getExemplarSampleRate();
+        }
+    }
+
+    /**
+     * @return latency histograms for each lifecycle stage of queued messages, or null if
+     *      lifecycle tracing is not enabled
+     * @see #setLifecycleTracing(boolean, double)
+     */
+    public LifecycleStats getLifecycleStats() {
+        LifecycleTracer tracer;
+        synchronized (mQueueLock) {
+            tracer = mTracer;
+        }
+        return tracer == null ? null : tracer.snapshot();
+    }
+
+    /**
+     * @return a snapshot of the messages queued with #{@link #enqueue(JSONObject)},
+     *      including how many were dropped or spilled because the queue was full
+     */
+    public DeliveryStats getDeliveryStats() {
+        DeliveryQueue queue;
+        synchronized (mQueueLock) {
+            queue = mQueue;
+        }
+        if (queue == null) {
+            return new DeliveryStats(0, 0, mMaxQueuedBytes, 0, 0, 0, 0);
+        }
+        return queue.getStats();
+    }
+
+    /**
+     * Queues a message to be sent in the background. Messages are batched by delivery lane and
+     * sent when a batch is full or the lane's linger time has passed.
+     *
+     * @param message A JSONObject formatted by #{@link MessageBuilder}
+     * @return false if the queue was full and the message was dropped by the overflow policy
+     * @throws ConnectoMessageException if the given JSONObject is not (apparently) a Connecto message.
+     * @throws IllegalStateException if this ConnectoAPI has been closed
+     * @see #setDeliveryLanes(List)
+     * @see #setMaxQueuedBytes(long)
+     */
+    public boolean enqueue(JSONObject message) {
+        if (! VALIDATOR.isValidMessage(message)) {
+            throw new ConnectoMessageException("Given JSONObject was not a valid Connecto message", message);
+        }
+        TraitDeltaCache traits = mTraitDeltas;
+        if (traits == null) {
+            return getQueue().add(message);
+        }
+        TraitDeltaCache.Delta delta = traits.filter(message);
+        if (delta == null) {
+            return true;
+        }
+        return getQueue().add(delta.getMessage(), delta.getHashes());
+    }
+
+    /**
+     * Queues a message written by an #{@link EventWriter}. Its bytes are held and sent as they are.
+     *
+     * @param message a message from #{@link MessageBuilder#writer()}
+     * @return false if the queue was full and the message was dropped by the overflow policy
+     * @throws IllegalStateException if this ConnectoAPI has been closed
+     * @see #enqueue(JSONObject)
+     */
+    public boolean enqueue(EncodedMessage message) {
+        if (mTraitDeltas != null && "identify".equals(message.getType())) {
+            return enqueue(message.toJSONObject());
+        }
+        return getQueue().add(message);
+    }
+
+    /**
+     * Sends every message queued with #{@link #enqueue(JSONObject)} and waits for the sends to finish.
+     *
+     * @throws ConnectoServerException if queued messages were refused or could not be sent since the last flush.
+     *      The undelivered messages are available from #{@link ConnectoServerException#getBadDeliveryContents()}
+     * @throws IOException if interrupted while waiting
+     */
+    public void flush() throws IOException {
+        DeliveryQueue queue;
+        synchronized (mQueueLock) {
+            queue = mQueue;
+        }
+        if (queue != null) {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Closes this ConnectoAPI, waiting at most #{@link #DEFAULT_CLOSE_DEADLINE} for queued messages to be sent.
+     *
+     * @throws IOException if some queued messages could not be sent
+     * @see #close(Duration)
+     */
+    @Override
+    public void close() throws IOException {
+        close(DEFAULT_CLOSE_DEADLINE);
+    }
+
+    /**
+     * Stops accepting new messages and sends everything queued with #{@link #enqueue(JSONObject)}.
+     * Pending batches are sent in parallel, and the call returns once they are all sent or the
+     * deadline has passed, whichever comes first. Calling close more than once has no further effect.
+     *
+     * @param deadline the longest this call will wait for queued messages to be sent
+     * @throws ConnectoServerException if some messages were refused or not sent before the deadline.
+     *      The undelivered messages are available from #{@link ConnectoServerException#getBadDeliveryContents()},
+     *      and those still in flight at the deadline, whose delivery is unknown, from
+     *      #{@link ConnectoServerException#getInFlightContents()}
+     */
+    public void close(Duration deadline) throws IOException {
+        long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        DeliveryQueue queue;
+        synchronized (mQueueLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            queue = mQueue;
+        }
+        removeShutdownHook();
+        mSegmentExecutor.shutdownNow();
+        mEndpoints.stopHealthChecks();
+
+        try {
+            if (queue != null) {
+                queue.close(deadline);
+            }
+        } finally {
+            ForwardingAgent.Connection agent = mAgent;
+            if (agent != null) {
+                agent.close();
+            }
+            awaitCallbacks(deadlineNanos);
+        }
+    }
+
+    /**
+     * Waits, until the deadline, for the callback executor this ConnectoAPI created to report
+     * the batches sent while closing.
+     */
+    private void awaitCallbacks(long deadlineNanos) {
+        ExecutorService callbacks;
+        synchronized (mQueueLock) {
+            callbacks = mOwnedCallbackExecutor;
+        }
+        if (callbacks == null) {
+            return;
+        }
+        callbacks.shutdown();
+        try {
+            callbacks.awaitTermination(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Registers a JVM shutdown hook that calls #{@link #close(Duration)}, so queued messages are
+     * sent when the process exits. The hook is removed if this ConnectoAPI is closed first.
+     *
+     * @param deadline the longest the hook will hold up JVM shutdown
+     */
+    public void registerShutdownHook(final Duration deadline) {
+        Thread hook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    close(deadline);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Closing at shutdown: " + e.getMessage(), e);
+                }
+            }
+        }, "connecto-shutdown");
+
+        synchronized (mQueueLock) {
+            if (mClosed || mShutdownHook != null) {
+                return;
+            }
+            mShutdownHook = hook;
+        }
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    private void removeShutdownHook() {
+        Thread hook;
+        synchronized (mQueueLock) {
+            hook = mShutdownHook;
+            mShutdownHook = null;
+        }
+        if (hook != null && hook != Thread.currentThread()) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // the JVM is already shutting down
+            }
+        }
+    }
+
+    private DeliveryQueue getQueue() {
+        synchronized (mQueueLock) {
+            if (mClosed) {
+                throw new IllegalStateException("ConnectoAPI has been closed");
+            }
+            if (mQueue == null) {
+                mQueue = new DeliveryQueue(this, mDeliveryLanes, mMaxInFlight,
+                        mMaxQueuedBytes, mOverflowPolicy, mOverflowBlockTimeout, mSpillDirectory,
+                        mOffHeapQueueBytes, mTracer);
+            }
+            return mQueue;
+        }
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("ConnectoAPI has been closed");
+        }
+    }
+
+    private void checkQueueNotStarted() {
+        if (mQueue != null || mClosed) {
+            throw new IllegalStateException("Delivery settings must be changed before messages are queued");
+        }
     }
 
     private String getAuthorizationHeader(String readKey) {
@@ -97,28 +913,70 @@ public class ConnectoAPI {
      *
      * @param readKey an authorization key provided to you in Connecto admin
      * @param userId a user id whose segments are being requested.
+     * @return the user's segments, or null if the response was not a list of segments
+     * @throws IOException if the segments could not be fetched
      */
 
     public SegmentResponse getSegments(String readKey, String userId) throws IOException {
+        return limitedFetchSegments(readKey, userId, mConnectTimeoutMilliseconds, mReadTimeoutMilliseconds);
+    }
+
+    /**
+     * Fetches segments for a lookup with a deadline, so the request itself gives up once the
+     * deadline has passed rather than holding a lookup thread for the full client timeouts.
+     * Package scope for mocking purposes
+     *
+     * @param timeoutMillis the most time the connection, and then each read, may take
+     */
+    /* package */
+    SegmentResponse getSegments(String readKey, String userId, int timeoutMillis) throws IOException {
+        return limitedFetchSegments(readKey, userId, boundedTimeout(mConnectTimeoutMilliseconds, timeoutMillis),
+                                    boundedTimeout(mReadTimeoutMilliseconds, timeoutMillis));
+    }
+
+    // A client timeout of 0 waits indefinitely, so it is no bound at all.
+    private static int boundedTimeout(int clientTimeout, int timeoutMillis) {
+        return clientTimeout == 0 ? timeoutMillis : Math.min(clientTimeout, timeoutMillis);
+    }
+
+    private SegmentResponse limitedFetchSegments(String readKey, String userId, int connectTimeout, int readTimeout) throws IOException {
+        ConcurrencyLimiter limiter = mRulesLimiter;
+        if (limiter == null) {
+            return fetchSegments(readKey, userId, connectTimeout, readTimeout);
+        }
+        if (! limiter.tryAcquire()) {
+            throw new IOException("Too many segment lookups in flight, lookup shed");
+        }
+
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            SegmentResponse response = fetchSegments(readKey, userId, connectTimeout, readTimeout);
+            failed = false;
+            return response;
+        } finally {
+            limiter.release(System.nanoTime() - start, failed);
+        }
+    }
+
+    private SegmentResponse fetchSegments(String readKey, String userId, int connectTimeout, int readTimeout) throws IOException {
         URL endpoint = new URL(mRulesEndPoint + userId);
         HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
         conn.setRequestMethod("GET");
-        conn.setConnectTimeout(mTimeoutMilliseconds);
-        conn.setReadTimeout(mTimeoutMilliseconds);
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
         String basicAuth = getAuthorizationHeader(readKey);
         conn.setRequestProperty("Authorization", basicAuth);
 
         InputStream responseStream = null;
-        SegmentResponse segmentResponse = null;
         try {
             responseStream = conn.getInputStream();
             String response = slurp(responseStream);
             try {
-                JSONArray segments = new JSONArray(response);
-                segmentResponse = new SegmentResponse(segments);
+                return new SegmentResponse(new JSONArray(response));
             } catch (JSONException e) {
+                return null;
             }
-            return segmentResponse;
         } finally {
             if (responseStream != null) {
                 try {
@@ -130,19 +988,121 @@ public class ConnectoAPI {
         }
     }
 
+    /**
+     * Gets the user's segments, waiting no longer than the given deadline.
+     *
+     * Lookups that take longer than the deadline are abandoned and the fallback is returned
+     * instead, so callers on a latency-sensitive path can render with cached or default segments.
+     * Requests are sent with timeouts no longer than what remains of the deadline, so an abandoned
+     * lookup stops soon after. Lookups run on a bounded pool of threads, and when every thread is
+     * busy the fallback is returned immediately.
+     * If hedging is enabled, a second request is sent when the first is slower than usual.
+     *
+     * @param readKey an authorization key provided to you in Connecto admin
+     * @param userId a user id whose segments are being requested.
+     * @param deadline the longest this call may take
+     * @param fallback returned if the deadline passes before the segments are fetched
+     * @throws IOException if every request sent failed before the deadline
+     * @see #setSegmentHedgePercentile(double)
+     */
+    public SegmentResponse getSegments(final String readKey, final String userId, Duration deadline,
+                                       SegmentResponse fallback) throws IOException {
+        if (mClosed) {
+            throw new IllegalStateException("ConnectoAPI has been closed");
+        }
+        final long deadlineNanos = System.nanoTime() + deadline.toNanos();
+        CompletionService<SegmentResponse> lookups = new ExecutorCompletionService<SegmentResponse>(mSegmentExecutor);
+        Callable<SegmentResponse> lookup = new Callable<SegmentResponse>() {
+            @Override
+            public SegmentResponse call() throws IOException {
+                long start = System.nanoTime();
+                long remaining = deadlineNanos - start;
+                if (remaining <= 0) {
+                    throw new IOException("Deadline passed before the segments lookup started");
+                }
+                // Rounded up, a timeout of 0 would mean no timeout at all.
+                long timeoutMillis = TimeUnit.NANOSECONDS.toMillis(remaining + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+                SegmentResponse response = getSegments(readKey, userId, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+                if (response == null) {
+                    throw new IOException("The rules endpoint returned no list of segments for user " + userId);
+                }
+                mSegmentLatencies.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                return response;
+            }
+        };
+
+        List<Future<SegmentResponse>> sent = new ArrayList<Future<SegmentResponse>>(2);
+        try {
+            try {
+                sent.add(lookups.submit(lookup));
+            } catch (RejectedExecutionException e) {
+                // Every lookup thread is busy.
+                return fallback;
+            }
+            int outstanding = 1;
+
+            long hedgeDelayMillis = mHedgePercentile > 0 ? mSegmentLatencies.percentile(mHedgePercentile, HEDGE_MIN_SAMPLES) : -1;
+            boolean hedged = hedgeDelayMillis < 0;
+            IOException failure = null;
+            while (outstanding > 0) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    return fallback;
+                }
+                long wait = hedged ? remaining : Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(hedgeDelayMillis));
+
+                Future<SegmentResponse> done = lookups.poll(wait, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (! hedged) {
+                        hedged = true;
+                        try {
+                            sent.add(lookups.submit(lookup));
+                            outstanding++;
+                        } catch (RejectedExecutionException e) {
+                            // No thread to hedge with, keep waiting on the first request.
+                        }
+                    }
+                    continue;
+                }
+
+                outstanding--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        failure = (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else {
+                        failure = new IOException(cause);
+                    }
+                }
+                if (deadlineNanos - System.nanoTime() <= 0) {
+                    // Timed out with the deadline rather than failed.
+                    return fallback;
+                }
+                if (outstanding == 0 && ! hedged) {
+                    // Failed fast, a hedge would fail the same way.
+                    break;
+                }
+            }
+            throw failure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return fallback;
+        } finally {
+            for (Future<SegmentResponse> request : sent) {
+                request.cancel(true);
+            }
+        }
+    }
+
     /**
      * Package scope for mocking purposes
      */
     /* package */
     boolean sendData(String dataString, String endpointUrl) throws IOException {
-        URL endpoint = new URL(endpointUrl);
-        HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
-        conn.setConnectTimeout(mTimeoutMilliseconds);
-        conn.setReadTimeout(mTimeoutMilliseconds);
-        conn.setDoOutput(true);
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json");
-
         byte[] utf8data;
         try {
             utf8data = dataString.getBytes("utf-8");
@@ -150,10 +1110,27 @@ public class ConnectoAPI {
             throw new RuntimeException("Connecto library requires utf-8 support", e);
         }
 
+        return sendData(utf8data, utf8data.length, "application/json", endpointUrl);
+    }
+
+    /**
+     * Package scope for mocking purposes
+     */
+    /* package */
+    boolean sendData(byte[] data, int length, String contentType, String endpointUrl) throws IOException {
+        URL endpoint = new URL(endpointUrl);
+        HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
+        conn.setConnectTimeout(mConnectTimeoutMilliseconds);
+        conn.setReadTimeout(mReadTimeoutMilliseconds);
+        conn.setDoOutput(true);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", contentType);
+        conn.setFixedLengthStreamingMode(length);
+
         OutputStream postStream = null;
         try {
             postStream = conn.getOutputStream();
-            postStream.write(utf8data);
+            postStream.write(data, 0, length);
         } finally {
             if (postStream != null) {
                 try {
@@ -182,30 +1159,235 @@ public class ConnectoAPI {
         return ((response != null));
     }
 
-    private void sendMessages(List<JSONObject> messages, String endpointUrl) throws IOException {
-        for (int i = 0; i < messages.size(); i += Config.MAX_MESSAGE_SIZE) {
-            int endIndex = i + Config.MAX_MESSAGE_SIZE;
-            endIndex = Math.min(endIndex, messages.size());
-            List<JSONObject> batch = messages.subList(i, endIndex);
+    /* package */
+    BatchEncoder getBatchEncoder() {
+        return mBatchEncoder;
+    }
+
+    /**
+     * Sends one batch in the configured wire format.
+     */
+    /* package */
+    boolean sendBatch(List<JSONObject> batch, String endpointUrl) throws IOException {
+        BatchEncoder encoder = mBatchEncoder;
+        FileSink sink = mFileSink;
+        if (sink != null) {
+            sink.write(batch, encoder);
+            return true;
+        }
+        if (encoder instanceof JsonBatchEncoder) {
+            return sendData(dataString(batch), endpointUrl);
+        }
+
+        PooledBuffer buffer = PooledBuffer.forThread();
+        encoder.encode(batch, buffer);
+        return sendData(buffer.array(), buffer.size(), encoder.getContentType(), endpointUrl);
+    }
+
+    /* package */
+    ConcurrencyLimiter getImportLimiter() {
+        return mImportLimiter;
+    }
+
+    private void wakeQueue() {
+        DeliveryQueue queue;
+        synchronized (mQueueLock) {
+            queue = mQueue;
+        }
+        if (queue != null) {
+            queue.pumpAll();
+        }
+    }
+
+    /* package */
+    EndpointPool getEndpoints() {
+        return mEndpoints;
+    }
+
+    /**
+     * Package scope for mocking purposes
+     *
+     * @return true if the endpoint answered without a server error
+     */
+    /* package */
+    boolean checkEndpoint(String endpointUrl) throws IOException {
+        URL endpoint = new URL(endpointUrl);
+        HttpURLConnection conn = (HttpURLConnection) endpoint.openConnection();
+        conn.setConnectTimeout(mConnectTimeoutMilliseconds);
+        conn.setReadTimeout(mReadTimeoutMilliseconds);
+        conn.setRequestMethod("HEAD");
+        try {
+            return conn.getResponseCode() < 500;
+        } finally {
+            conn.disconnect();
+        }
+    }
 
-            if (batch.size() > 0) {
-                String messagesString = dataString(batch);
-                boolean accepted = sendData(messagesString, endpointUrl);
+    private void sendMessages(List<JSONObject> messages) throws IOException {
+        sendMessages(messages, null);
+    }
 
-                if (! accepted) {
-                    throw new ConnectoServerException("Server refused to accept messages, they may be malformed.", batch);
+    /**
+     * @param deltas trait changes to remember once their messages are accepted, or null
+     */
+    private void sendMessages(List<JSONObject> messages, Map<JSONObject, TraitDeltaCache.Delta> deltas) throws IOException {
+        ForwardingAgent.Connection agent = mAgent;
+        EndpointPool endpoints = mEndpoints;
+        for (List<JSONObject> batch : splitBatches(messages)) {
+            if (agent != null && mFileSink == null) {
+                forwardMessages(agent, batch, deltas);
+            } else if (endpoints.getRouting() == EndpointRouting.USER_HASH) {
+                List<String> keys = new ArrayList<String>(batch.size());
+                for (JSONObject message : batch) {
+                    keys.add(message.optString("userId"));
+                }
+                for (Map.Entry<String, List<JSONObject>> group : endpoints.partition(batch, keys).entrySet()) {
+                    sendMessages(endpoints, group.getKey(), group.getValue(), deltas);
                 }
+            } else {
+                sendMessages(endpoints, endpoints.next(), batch, deltas);
             }
         }
     }
 
-    private String dataString(List<JSONObject> messages) {
-        JSONArray array = new JSONArray();
-        for (JSONObject message:messages) {
-            array.put(message);
+    private void sendMessages(EndpointPool endpoints, String endpointUrl, final List<JSONObject> batch,
+                              Map<JSONObject, TraitDeltaCache.Delta> deltas) throws IOException {
+        final int[] attempts = { 0 };
+        EndpointPool.Attempt<JSONObject> attempt = new EndpointPool.Attempt<JSONObject>() {
+            @Override
+            public boolean send(String url, List<JSONObject> messages) throws IOException {
+                attempts[0]++;
+                return sendBatch(messages, url);
+            }
+        };
+        List<String> keys = new ArrayList<String>(batch.size());
+        for (JSONObject message : batch) {
+            keys.add(message.optString("userId"));
         }
 
-        return array.toString();
+        long start = System.nanoTime();
+        List<JSONObject> refused = batch;
+        List<JSONObject> accepted = Collections.emptyList();
+        try {
+            refused = sendAttempts(endpoints, endpointUrl, batch, keys, attempt);
+            accepted = without(batch, refused);
+        } finally {
+            if (mDeliveryListener != null) {
+                reportDelivery(accepted, refused, System.nanoTime() - start, attempts[0]);
+            }
+        }
+
+        acknowledgeTraits(accepted, deltas);
+        if (! refused.isEmpty()) {
+            throw new ConnectoServerException("Server refused to accept messages, they may be malformed.", refused);
+        }
+    }
+
+    private static List<JSONObject> without(List<JSONObject> batch, List<JSONObject> removed) {
+        if (removed.isEmpty()) {
+            return batch;
+        }
+        Set<JSONObject> skipped = Collections.newSetFromMap(new IdentityHashMap<JSONObject, Boolean>());
+        skipped.addAll(removed);
+        List<JSONObject> kept = new ArrayList<JSONObject>(batch.size() - skipped.size());
+        for (JSONObject message : batch) {
+            if (! skipped.contains(message)) {
+                kept.add(message);
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Hands a batch to the forwarding agent. The agent queues and sends it with its own client,
+     * so the batch skips the events endpoints' health checks, failover and concurrency limit.
+     */
+    private void forwardMessages(ForwardingAgent.Connection agent, List<JSONObject> batch,
+                                 Map<JSONObject, TraitDeltaCache.Delta> deltas) throws IOException {
+        PooledBuffer buffer = PooledBuffer.forThread();
+        for (JSONObject message : batch) {
+            buffer.write(message.toString().getBytes(StandardCharsets.UTF_8));
+            buffer.write('\n');
+        }
+
+        long start = System.nanoTime();
+        int queued = 0;
+        try {
+            queued = forward(agent, buffer, batch.size());
+        } finally {
+            if (mDeliveryListener != null) {
+                reportDelivery(batch.subList(0, queued), batch.subList(queued, batch.size()), System.nanoTime() - start, 1);
+            }
+        }
+
+        acknowledgeTraits(batch.subList(0, queued), deltas);
+        if (queued < batch.size()) {
+            // Only what the agent didn't queue, so resending it never duplicates messages.
+            throw new ConnectoServerException("Forwarding agent refused to queue messages, they may be malformed.",
+                                              new ArrayList<JSONObject>(batch.subList(queued, batch.size())));
+        }
+    }
+
+    private void acknowledgeTraits(List<JSONObject> accepted, Map<JSONObject, TraitDeltaCache.Delta> deltas) {
+        TraitDeltaCache traits = mTraitDeltas;
+        if (deltas != null && traits != null) {
+            for (JSONObject message : accepted) {
+                TraitDeltaCache.Delta delta = deltas.get(message);
+                if (delta != null) {
+                    traits.acknowledge(delta.getUserId(), delta.getHashes());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a batch, within the events endpoint's concurrency limit when one is set.
+     *
+     * @return the messages that were refused, or could not be sent
+     */
+    private List<JSONObject> sendAttempts(EndpointPool endpoints, String endpointUrl, List<JSONObject> batch,
+                                          List<String> keys, EndpointPool.Attempt<JSONObject> attempt) throws IOException {
+        List<JSONObject> refused;
+        ConcurrencyLimiter limiter = mImportLimiter;
+        if (limiter == null) {
+            refused = endpoints.send(endpointUrl, batch, keys, attempt);
+        } else {
+            try {
+                if (! limiter.acquire(mReadTimeoutMilliseconds, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Timed out waiting for room under the events endpoint's concurrency limit");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for room under the events endpoint's concurrency limit", e);
+            }
+
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                refused = endpoints.send(endpointUrl, batch, keys, attempt);
+                failed = false;
+            } finally {
+                limiter.release(System.nanoTime() - start, failed);
+                wakeQueue();
+            }
+        }
+        return refused;
+    }
+
+    private List<List<JSONObject>> splitBatches(List<JSONObject> messages) {
+        List<List<JSONObject>> batches = new ArrayList<List<JSONObject>>();
+        int maxBatchSize = mMaxBatchSize;
+        for (int i = 0; i < messages.size(); i += maxBatchSize) {
+            int endIndex = i + maxBatchSize;
+            endIndex = Math.min(endIndex, messages.size());
+            batches.add(messages.subList(i, endIndex));
+        }
+        return batches;
+    }
+
+    /* package */
+    String dataString(List<JSONObject> messages) {
+        return JsonBatchEncoder.toJson(messages);
     }
 
     private String slurp(InputStream in) throws IOException {
@@ -224,10 +1406,74 @@ public class ConnectoAPI {
         return out.toString();
     }
 
-    private final String mEventsEndpoint;
+    // A listener with the executor it runs on, replaced together.
+    private static class ListenerRegistration {
+        ListenerRegistration(DeliveryListener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+
+        final DeliveryListener mListener;
+        final Executor mExecutor;
+    }
+
     private final String mRulesEndPoint;
-    private int mTimeoutMilliseconds;
+    private volatile int mConnectTimeoutMilliseconds;
+    private volatile int mReadTimeoutMilliseconds;
+    private volatile double mHedgePercentile = 0;
+    private volatile int mMaxBatchSize = Config.MAX_MESSAGE_SIZE;
+    private volatile BatchEncoder mBatchEncoder = new JsonBatchEncoder();
+    private volatile FileSink mFileSink = null;
+    private volatile TraitDeltaCache mTraitDeltas = null;
+    private volatile ForwardingAgent.Connection mAgent = null;
+    private volatile ListenerRegistration mDeliveryListener = null;
+    private ExecutorService mOwnedCallbackExecutor = null;
+    private final LatencySampler mSegmentLatencies = new LatencySampler(HEDGE_SAMPLE_SIZE);
+    // Bounded, with no queue, so a lookup is refused rather than left waiting when every thread is busy.
+    private final ExecutorService mSegmentExecutor = new ThreadPoolExecutor(0, MAX_SEGMENT_LOOKUP_THREADS, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new DaemonThreadFactory("connecto-segments"));
+
+    private final Object mQueueLock = new Object();
+    private DeliveryQueue mQueue = null;
+    private List<DeliveryLane> mDeliveryLanes = DEFAULT_DELIVERY_LANES;
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private long mMaxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private OverflowPolicy mOverflowPolicy = OverflowPolicy.DROP_NEWEST;
+    private Duration mOverflowBlockTimeout = Duration.ofSeconds(1);
+    private File mSpillDirectory = new File(System.getProperty("java.io.tmpdir"), "connecto-spill");
+    private long mOffHeapQueueBytes = 0;
+    private LifecycleTracer mTracer = null;
+    private volatile boolean mClosed = false;
+    private Thread mShutdownHook = null;
+    private volatile EndpointPool mEndpoints;
+    private volatile ConcurrencyLimiter mImportLimiter = null;
+    private volatile ConcurrencyLimiter mRulesLimiter = null;
+    private Duration mHealthCheckInterval = DEFAULT_HEALTH_CHECK_INTERVAL;
+
+    /**
+     * How long #{@link #close()} waits for queued messages to be sent.
+     */
+    public static final Duration DEFAULT_CLOSE_DEADLINE = Duration.ofSeconds(10);
+
+    /**
+     * How often events endpoints are health checked, unless set with #{@link #setEndpointHealthCheckInterval(Duration)}.
+     */
+    public static final Duration DEFAULT_HEALTH_CHECK_INTERVAL = Duration.ofSeconds(10);
+
+    /**
+     * Identify messages are sent ahead of, and with less linger than, everything else.
+     */
+    public static final List<DeliveryLane> DEFAULT_DELIVERY_LANES = Collections.unmodifiableList(Arrays.asList(
+            DeliveryLane.identifyLane(1, 1, 100),
+            DeliveryLane.defaultLane(3, DeliveryQueue.DEFAULT_LINGER_MILLIS)));
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 64L * 1024 * 1024;
 
+    private static final Logger LOGGER = Logger.getLogger(ConnectoAPI.class.getName());
+    private static final ClientDelivery VALIDATOR = new ClientDelivery();
+    private static final int MAX_SEGMENT_LOOKUP_THREADS = 64;
+    private static final int HEDGE_SAMPLE_SIZE = 128;
+    private static final int HEDGE_MIN_SAMPLES = 16;
     private static final int BUFFER_SIZE = 256; // Small, we expect small responses.
     private static final int DEFAULT_READ_TIMEOUT_MILLIS = 120000; // Two minutes should be more than enough for a response.
 
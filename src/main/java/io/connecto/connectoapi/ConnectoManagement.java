@@ -0,0 +1,142 @@
+package io.connecto.connectoapi;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Exposes the state and tuning of a #{@link ConnectoAPI} over JMX.
+ *
+ * Every setter goes through the client's own setters, so changes made from a JMX console
+ * are validated the same way and take effect without restarting the client.
+ *
+ * <pre>
+ * {@code
+ *     ConnectoManagement.register("main", api, segmentCache);
+ * }
+ * </pre>
+ */
+public class ConnectoManagement implements ConnectoManagementMBean {
+
+    /**
+     * @param api the client to manage
+     * @param cache the segment cache to manage, or null
+     */
+    public ConnectoManagement(ConnectoAPI api, SegmentCache cache) {
+        mApi = api;
+        mCache = cache;
+    }
+
+    /**
+     * Registers a ConnectoManagement with the platform MBean server, under
+     * "io.connecto:type=ConnectoAPI,name=" followed by the given name.
+     *
+     * @param name distinguishes clients in the same process
+     * @param api the client to manage
+     * @param cache the segment cache to manage, or null
+     * @return the name the MBean was registered under, to pass to #{@link #unregister(ObjectName)}
+     * @throws JMException if the name is malformed or already registered
+     */
+    public static ObjectName register(String name, ConnectoAPI api, SegmentCache cache) throws JMException {
+        ObjectName objectName = new ObjectName("io.connecto:type=ConnectoAPI,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new ConnectoManagement(api, cache), objectName);
+        return objectName;
+    }
+
+    public static void unregister(ObjectName objectName) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName)) {
+            server.unregisterMBean(objectName);
+        }
+    }
+
+    @Override
+    public long getQueuedMessages() { return mApi.getDeliveryStats().getQueuedMessages(); }
+
+    @Override
+    public long getQueuedBytes() { return mApi.getDeliveryStats().getQueuedBytes(); }
+
+    @Override
+    public int getInFlightRequests() { return mApi.getDeliveryStats().getInFlightRequests(); }
+
+    @Override
+    public long getDroppedMessages() { return mApi.getDeliveryStats().getDroppedMessages(); }
+
+    @Override
+    public long getSpillBacklog() { return mApi.getDeliveryStats().getSpillBacklog(); }
+
+    @Override
+    public int getImportConcurrencyLimit() { return mApi.getImportConcurrencyLimit(); }
+
+    @Override
+    public int getRulesConcurrencyLimit() { return mApi.getRulesConcurrencyLimit(); }
+
+    @Override
+    public int getMaxBatchSize() { return mApi.getMaxBatchSize(); }
+
+    @Override
+    public void setMaxBatchSize(int maxBatchSize) { mApi.setMaxBatchSize(maxBatchSize); }
+
+    @Override
+    public int getMaxInFlight() { return mApi.getMaxInFlight(); }
+
+    @Override
+    public void setMaxInFlight(int maxInFlight) { mApi.setMaxInFlight(maxInFlight); }
+
+    @Override
+    public int getConnectTimeoutMillis() { return mApi.getConnectTimeout(); }
+
+    @Override
+    public void setConnectTimeoutMillis(int timeoutMillis) { mApi.setConnectTimeout(timeoutMillis); }
+
+    @Override
+    public int getReadTimeoutMillis() { return mApi.getReadTimeout(); }
+
+    @Override
+    public void setReadTimeoutMillis(int timeoutMillis) { mApi.setReadTimeout(timeoutMillis); }
+
+    @Override
+    public double getSegmentHedgePercentile() { return mApi.getSegmentHedgePercentile(); }
+
+    @Override
+    public void setSegmentHedgePercentile(double percentile) { mApi.setSegmentHedgePercentile(percentile); }
+
+    @Override
+    public double getLifecycleSampleRate() { return mApi.getLifecycleSampleRate(); }
+
+    @Override
+    public void setLifecycleSampleRate(double sampleRate) { mApi.setLifecycleSampleRate(sampleRate); }
+
+    @Override
+    public void setLaneLingerMillis(String laneName, long lingerMillis) { mApi.setLaneLingerMillis(laneName, lingerMillis); }
+
+    @Override
+    public long getCacheTtlMillis() { return mCache == null ? -1 : mCache.getTtlMillis(); }
+
+    @Override
+    public void setCacheTtlMillis(long ttlMillis) {
+        if (mCache == null) {
+            throw new IllegalStateException("No SegmentCache is managed");
+        }
+        mCache.setTtlMillis(ttlMillis);
+    }
+
+    @Override
+    public int getCacheEntries() { return mCache == null ? 0 : mCache.size(); }
+
+    @Override
+    public long getCacheHits() { return mCache == null ? 0 : mCache.getStats().getHits(); }
+
+    @Override
+    public long getCacheMisses() { return mCache == null ? 0 : mCache.getStats().getMisses(); }
+
+    @Override
+    public long getCacheStaleHits() { return mCache == null ? 0 : mCache.getStats().getStaleHits(); }
+
+    @Override
+    public long getCacheRefreshFailures() { return mCache == null ? 0 : mCache.getStats().getRefreshFailures(); }
+
+    private final ConnectoAPI mApi;
+    private final SegmentCache mCache;
+}
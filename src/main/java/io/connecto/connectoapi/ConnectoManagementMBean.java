@@ -0,0 +1,70 @@
+package io.connecto.connectoapi;
+
+/**
+ * The management interface of a #{@link ConnectoAPI} and, optionally, its #{@link SegmentCache}.
+ * Attributes with setters can be changed while the client is running.
+ *
+ * @see ConnectoManagement
+ */
+public interface ConnectoManagementMBean {
+
+    long getQueuedMessages();
+
+    long getQueuedBytes();
+
+    int getInFlightRequests();
+
+    long getDroppedMessages();
+
+    long getSpillBacklog();
+
+    int getImportConcurrencyLimit();
+
+    int getRulesConcurrencyLimit();
+
+    int getMaxBatchSize();
+
+    void setMaxBatchSize(int maxBatchSize);
+
+    int getMaxInFlight();
+
+    void setMaxInFlight(int maxInFlight);
+
+    int getConnectTimeoutMillis();
+
+    void setConnectTimeoutMillis(int timeoutMillis);
+
+    int getReadTimeoutMillis();
+
+    void setReadTimeoutMillis(int timeoutMillis);
+
+    double getSegmentHedgePercentile();
+
+    void setSegmentHedgePercentile(double percentile);
+
+    double getLifecycleSampleRate();
+
+    void setLifecycleSampleRate(double sampleRate);
+
+    /**
+     * Changes the linger time of the named delivery lane.
+     */
+    void setLaneLingerMillis(String laneName, long lingerMillis);
+
+    /**
+     * @return the cache time to live, or -1 if no cache is managed
+     */
+    long getCacheTtlMillis();
+
+    void setCacheTtlMillis(long ttlMillis);
+
+    int getCacheEntries();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheStaleHits();
+
+    long getCacheRefreshFailures();
+}
@@ -3,6 +3,7 @@ package io.connecto.connectoapi;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -14,13 +15,31 @@ import java.util.List;
 public class ConnectoServerException extends IOException {
 
     public ConnectoServerException(String message, List<JSONObject> badDelivery) {
+        this(message, badDelivery, Collections.<JSONObject>emptyList());
+    }
+
+    /**
+     * @param inFlight messages that were sent but not yet answered, so may or may not have been delivered
+     */
+    public ConnectoServerException(String message, List<JSONObject> badDelivery, List<JSONObject> inFlight) {
         super(message);
         mBadDelivery = badDelivery;
+        mInFlight = inFlight;
     }
 
     public List<JSONObject> getBadDeliveryContents() {
         return mBadDelivery;
     }
 
+    /**
+     * @return messages whose requests were still in flight when the client stopped waiting for them,
+     *      for example at a close deadline. They may or may not have been delivered, so resending
+     *      them can create duplicates.
+     */
+    public List<JSONObject> getInFlightContents() {
+        return mInFlight;
+    }
+
     private final List<JSONObject> mBadDelivery;
+    private final List<JSONObject> mInFlight;
 }
@@ -0,0 +1,22 @@
+package io.connecto.connectoapi;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Names the library's background threads, and keeps them from holding up JVM exit.
+ */
+/* package */
+class DaemonThreadFactory implements ThreadFactory {
+    DaemonThreadFactory(String name) {
+        mName = name;
+    }
+
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, mName);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private final String mName;
+}
@@ -0,0 +1,101 @@
+package io.connecto.connectoapi;
+
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes a class of queued messages that are batched and sent separately from the rest.
+ *
+ * Each lane has its own pending batch, its own linger time, and a reserved share of the
+ * requests the client keeps in flight, so messages in a latency-sensitive lane are never
+ * stuck behind a backlog in another. Messages are routed to the highest priority lane that
+ * accepts them.
+ *
+ * @see ConnectoAPI#setDeliveryLanes(java.util.List)
+ */
+public final class DeliveryLane {
+
+    /**
+     * @param name a name for the lane, used in diagnostics
+     * @param priority lanes with a higher priority are matched and sent first
+     * @param weight this lane's share of the in-flight request limit, relative to the other lanes
+     * @param lingerMillis the longest a message waits for its batch to fill before being sent
+     * @param messageTypes the message types ("track", "identify") accepted, or null for any type
+     * @param eventNames the event names accepted, or null for any event
+     */
+    public DeliveryLane(String name, int priority, int weight, long lingerMillis,
+                        Collection<String> messageTypes, Collection<String> eventNames) {
+        if (weight < 1 || lingerMillis < 0) {
+            throw new IllegalArgumentException("weight must be positive and lingerMillis must not be negative");
+        }
+        mName = name;
+        mPriority = priority;
+        mWeight = weight;
+        mLingerMillis = lingerMillis;
+        mMessageTypes = messageTypes == null ? null : Collections.unmodifiableSet(new HashSet<String>(messageTypes));
+        mEventNames = eventNames == null ? null : Collections.unmodifiableSet(new HashSet<String>(eventNames));
+    }
+
+    /**
+     * @return a lane that accepts every identify message
+     */
+    public static DeliveryLane identifyLane(int priority, int weight, long lingerMillis) {
+        return new DeliveryLane("identify", priority, weight, lingerMillis, Arrays.asList("identify"), null);
+    }
+
+    /**
+     * @return a lane that accepts track messages with one of the given event names
+     */
+    public static DeliveryLane eventLane(String name, int priority, int weight, long lingerMillis, String... eventNames) {
+        return new DeliveryLane(name, priority, weight, lingerMillis, Arrays.asList("track"), Arrays.asList(eventNames));
+    }
+
+    /**
+     * @return a lowest priority lane that accepts every message
+     */
+    public static DeliveryLane defaultLane(int weight, long lingerMillis) {
+        return new DeliveryLane("default", Integer.MIN_VALUE, weight, lingerMillis, null, null);
+    }
+
+    public String getName() { return mName; }
+
+    public int getPriority() { return mPriority; }
+
+    public int getWeight() { return mWeight; }
+
+    public long getLingerMillis() { return mLingerMillis; }
+
+    /* package */
+    DeliveryLane withLingerMillis(long lingerMillis) {
+        return new DeliveryLane(mName, mPriority, mWeight, lingerMillis, mMessageTypes, mEventNames);
+    }
+
+    /* package */
+    boolean acceptsAll() {
+        return mMessageTypes == null && mEventNames == null;
+    }
+
+    /* package */
+    boolean accepts(String type, String eventName) {
+        if (mMessageTypes != null && ! mMessageTypes.contains(type)) {
+            return false;
+        }
+        return mEventNames == null || mEventNames.contains(eventName);
+    }
+
+    @Override
+    public String toString() {
+        return "DeliveryLane(" + mName + ")";
+    }
+
+    private final String mName;
+    private final int mPriority;
+    private final int mWeight;
+    private final long mLingerMillis;
+    private final Set<String> mMessageTypes;
+    private final Set<String> mEventNames;
+}
@@ -0,0 +1,16 @@
+package io.connecto.connectoapi;
+
+/**
+ * Receives the outcome of every batch sent by a #{@link ConnectoAPI}, whether it was queued
+ * with #{@link ConnectoAPI#enqueue(org.json.JSONObject)} or sent by #{@link ConnectoAPI#deliver(ClientDelivery)}.
+ *
+ * @see ConnectoAPI#setDeliveryListener(DeliveryListener)
+ */
+public interface DeliveryListener {
+
+    /**
+     * Called once per batch on the listener's callback executor. Batches may be reported in
+     * a different order than they were sent.
+     */
+    void onDelivery(DeliveryResult result);
+}
@@ -0,0 +1,880 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the messages queued with #{@link ConnectoAPI#enqueue(JSONObject)} and sends them
+ * in the background.
+ *
+ * Messages are routed to a lane, collected into batches of at most #{@link ConnectoAPI#getMaxBatchSize()},
+ * and sent when a batch is full or its linger time has passed. Each lane may have only its
+ * share of the in-flight limit outstanding at once.
+ *
+ * The encoded size of every message held in memory, from being queued until its batch is sent
+ * or reported undelivered, is counted against a byte budget. Messages that would exceed the
+ * budget are handled by the #{@link OverflowPolicy}.
+ *
+ * With an OffHeapArena, queued messages are held encoded in direct memory rather than as
+ * JSONObjects, and JSON batches are written straight from the arena.
+ */
+/* package */
+class DeliveryQueue {
+
+    DeliveryQueue(ConnectoAPI api, List<DeliveryLane> lanes, int maxInFlight,
+                  long maxQueuedBytes, OverflowPolicy overflowPolicy, Duration overflowBlockTimeout,
+                  File spillDirectory, long offHeapBytes, LifecycleTracer tracer) {
+        mApi = api;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mOverflowPolicy = overflowPolicy;
+        mOverflowBlockTimeout = overflowBlockTimeout;
+        mSpill = overflowPolicy == OverflowPolicy.SPILL_TO_DISK ? new SpillFile(spillDirectory) : null;
+        mArena = offHeapBytes > 0 ? new OffHeapArena(offHeapBytes) : null;
+        mTracer = tracer;
+
+        List<DeliveryLane> sorted = new ArrayList<DeliveryLane>(lanes);
+        boolean hasDefault = false;
+        for (DeliveryLane lane : sorted) {
+            hasDefault |= lane.acceptsAll();
+        }
+        if (! hasDefault) {
+            sorted.add(implicitDefaultLane(DEFAULT_LINGER_MILLIS));
+        }
+        Collections.sort(sorted, new Comparator<DeliveryLane>() {
+            @Override
+            public int compare(DeliveryLane a, DeliveryLane b) {
+                return Integer.compare(b.getPriority(), a.getPriority());
+            }
+        });
+
+        mLanes = new ArrayList<LaneState>(sorted.size());
+        for (DeliveryLane lane : sorted) {
+            mLanes.add(new LaneState(lane));
+        }
+        sharePermits(maxInFlight);
+
+        mLingerTimer = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("connecto-linger"));
+        mSender = Executors.newCachedThreadPool(new DaemonThreadFactory("connecto-delivery"));
+    }
+
+    /**
+     * Queues a message, sending its lane's batch if it is now full.
+     *
+     * @return false if the message was dropped by the overflow policy
+     * @throws IllegalStateException if the queue has been closed
+     */
+    synchronized boolean add(JSONObject message) {
+        return add(message, null);
+    }
+
+    /**
+     * Queues an identify message whose trait hashes are remembered once it is acknowledged.
+     *
+     * @see TraitDeltaCache
+     */
+    synchronized boolean add(JSONObject message, long[] traitHashes) {
+        checkOpen();
+        long builtNanos = MessageBuilder.getBuiltNanos(message);
+        String json = message.toString();
+        long bytes = utf8Length(json);
+        int admitted = admit(bytes, json, builtNanos, traitHashes);
+        if (admitted != QUEUE) {
+            return admitted == SPILLED;
+        }
+        queue(message, json, bytes, builtNanos).mTraitHashes = traitHashes;
+        return true;
+    }
+
+    /**
+     * Queues a message written by an EventWriter, holding its bytes as they are.
+     *
+     * @see #add(JSONObject)
+     */
+    synchronized boolean add(EncodedMessage message) {
+        checkOpen();
+        int admitted = admit(message.size(), message, message.getBuiltNanos(), null);
+        if (admitted != QUEUE) {
+            return admitted == SPILLED;
+        }
+        QueuedMessage queued = mArena == null ? null : QueuedMessage.inArena(mArena, message.bytes(), message.getMessageId());
+        if (queued == null) {
+            queued = QueuedMessage.encoded(message);
+        }
+        queued.mUserId = message.getUserId();
+        queue(route(message.getType(), message.getEventName()), queued, message.getBuiltNanos());
+        return true;
+    }
+
+    /**
+     * Applies the spill file's ordering and the overflow policy to a new message.
+     *
+     * @param spillable the message, written to the spill file as its toString()
+     * @return QUEUE if the message should be queued now, otherwise SPILLED or DROPPED
+     */
+    private int admit(long bytes, Object spillable, long builtNanos, long[] traitHashes) {
+        if (bytes > mMaxQueuedBytes) {
+            // Could never be held, or brought back from the spill file.
+            mDroppedMessages++;
+            return DROPPED;
+        }
+        if (mSpill != null && ! mSpill.isEmpty()) {
+            // Keep messages in order, nothing skips ahead of the spill file.
+            return spill(spillable.toString(), builtNanos, traitHashes) ? SPILLED : DROPPED;
+        }
+
+        if (mQueuedBytes + bytes > mMaxQueuedBytes) {
+            switch (mOverflowPolicy) {
+                case BLOCK:
+                    if (! awaitRoom(bytes)) {
+                        mDroppedMessages++;
+                        return DROPPED;
+                    }
+                    break;
+                case DROP_OLDEST:
+                    dropOldest(bytes);
+                    if (mQueuedBytes + bytes > mMaxQueuedBytes) {
+                        // What is left is in flight and can't be dropped.
+                        mDroppedMessages++;
+                        return DROPPED;
+                    }
+                    break;
+                case DROP_NEWEST:
+                    mDroppedMessages++;
+                    return DROPPED;
+                case SPILL_TO_DISK:
+                    return spill(spillable.toString(), builtNanos, traitHashes) ? SPILLED : DROPPED;
+            }
+        }
+        return QUEUE;
+    }
+
+    /**
+     * Sends every queued message and waits for the sends to finish.
+     *
+     * @throws ConnectoServerException if messages were refused or could not be sent since the last flush
+     */
+    void flush() throws IOException {
+        List<JSONObject> undelivered = new ArrayList<JSONObject>();
+        synchronized (this) {
+            try {
+                drain(Long.MAX_VALUE, undelivered);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while flushing queued messages", e);
+            }
+        }
+
+        if (! undelivered.isEmpty()) {
+            throw new ConnectoServerException(undelivered.size() + " queued messages were not delivered.", undelivered);
+        }
+    }
+
+    /**
+     * Stops accepting messages and sends everything queued, waiting at most until the deadline.
+     *
+     * @throws ConnectoServerException if messages were refused or not sent before the deadline
+     */
+    void close(Duration deadline) throws IOException {
+        List<JSONObject> undelivered = new ArrayList<JSONObject>();
+        List<JSONObject> inFlight = new ArrayList<JSONObject>();
+        long unsentSpilled = 0;
+        File unsentFile = null;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            notifyAll();
+
+            try {
+                drain(deadline.toNanos(), undelivered);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            undelivered.addAll(takeUndelivered());
+            if (mSpill != null && ! mSpill.isEmpty()) {
+                // Copied line by line rather than read back onto the heap.
+                unsentSpilled = mSpill.size();
+                try {
+                    unsentFile = mSpill.keepUnread();
+                } catch (IOException e) {
+                    mSpill.reset();
+                }
+            }
+            for (LaneState lane : mLanes) {
+                for (Batch batch : lane.mReady) {
+                    undelivered.addAll(toMessages(batch.mMessages));
+                }
+                lane.mReady.clear();
+            }
+            for (Runnable unsent : mSender.shutdownNow()) {
+                // Never started, so its batch was not sent and its permit was never given back.
+                Send send = (Send) unsent;
+                if (send.mLimiter != null) {
+                    send.mLimiter.cancel();
+                }
+                mInFlight.remove(send.mBatch);
+                undelivered.addAll(toMessages(send.mBatch.mMessages));
+            }
+            for (Batch batch : mInFlight) {
+                // Possibly still being read by its sender, so its blocks are not freed. The arena is discarded with the queue.
+                for (QueuedMessage queued : batch.mMessages) {
+                    inFlight.add(queued.getMessage());
+                }
+            }
+            mInFlight.clear();
+            mQueuedBytes = 0;
+            mQueuedMessages = 0;
+        }
+        mLingerTimer.shutdownNow();
+
+        if (undelivered.isEmpty() && inFlight.isEmpty() && unsentSpilled == 0) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        message.append(undelivered.size()).append(" queued messages were not delivered before close");
+        if (! inFlight.isEmpty()) {
+            message.append(", ").append(inFlight.size()).append(" were still in flight and may or may not have been delivered");
+        }
+        if (unsentSpilled > 0) {
+            message.append(", ").append(unsentSpilled).append(" spilled messages were not sent");
+            if (unsentFile != null) {
+                message.append(", they were kept in ").append(unsentFile);
+            }
+        }
+        throw new ConnectoServerException(message.append('.').toString(), undelivered, inFlight);
+    }
+
+    /**
+     * Sends everything queued, bringing spilled messages back as they fit in the budget, until
+     * everything is sent or the timeout passes. Messages that fail are moved to the given list
+     * as they are reported, so the room they take can be used for the rest of the spill file.
+     */
+    private void drain(long timeoutNanos, List<JSONObject> undelivered) throws InterruptedException {
+        long deadlineNanos = System.nanoTime() + Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+        while (true) {
+            undelivered.addAll(takeUndelivered());
+            unspill(mMaxQueuedBytes);
+            sealAll();
+            if (isDrained()) {
+                return;
+            }
+            long remaining = deadlineNanos - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+    }
+
+    /**
+     * Shares a new in-flight limit between the lanes. Lanes over their new share finish
+     * their current requests before sending more.
+     */
+    synchronized void setMaxInFlight(int maxInFlight) {
+        sharePermits(maxInFlight);
+        pumpAll();
+    }
+
+    /**
+     * Starts sending ready batches, for when requests outside the queue have finished
+     * and freed room under the adaptive concurrency limit.
+     */
+    synchronized void pumpAll() {
+        for (LaneState lane : mLanes) {
+            pump(lane);
+        }
+    }
+
+    /**
+     * Changes the linger time of the named lane, from its next batch on.
+     *
+     * @return false if there is no lane with that name
+     */
+    synchronized boolean setLingerMillis(String laneName, long lingerMillis) {
+        boolean found = false;
+        for (LaneState lane : mLanes) {
+            if (lane.mLane.getName().equals(laneName)) {
+                lane.mLingerMillis = lingerMillis;
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the lane added for messages no configured lane accepts, when none accepts every message
+     */
+    static DeliveryLane implicitDefaultLane(long lingerMillis) {
+        return DeliveryLane.defaultLane(1, lingerMillis);
+    }
+
+    synchronized DeliveryStats getStats() {
+        return new DeliveryStats(mQueuedMessages, mQueuedBytes, mMaxQueuedBytes, mInFlight.size(), mDroppedMessages,
+                                 mSpilledMessages, mSpill == null ? 0 : mSpill.size());
+    }
+
+    private void checkOpen() {
+        if (mClosed) {
+            throw new IllegalStateException("ConnectoAPI has been closed");
+        }
+    }
+
+    private QueuedMessage queue(JSONObject message, String json, long bytes, long builtNanos) {
+        QueuedMessage queued = mArena == null ? null : QueuedMessage.inArena(mArena, json.getBytes(StandardCharsets.UTF_8), message.optString("messageId"));
+        if (queued == null) {
+            queued = QueuedMessage.onHeap(message, json, bytes);
+        }
+        queued.mUserId = message.optString("userId");
+        queue(route(message.optString("type"), message.optString("event")), queued, builtNanos);
+        return queued;
+    }
+
+    private void queue(LaneState lane, QueuedMessage queued, long builtNanos) {
+        long bytes = queued.getBytes();
+        if (mTracer != null) {
+            mTracer.enqueued(queued, builtNanos, System.nanoTime());
+        }
+
+        if (lane.mPending.isEmpty()) {
+            scheduleLinger(lane);
+        }
+        lane.mPending.add(queued);
+        lane.mPendingBytes += bytes;
+        mQueuedBytes += bytes;
+        mQueuedMessages++;
+        if (lane.mPending.size() >= mApi.getMaxBatchSize()) {
+            seal(lane);
+            pump(lane);
+        }
+    }
+
+    private boolean awaitRoom(long bytes) {
+        long deadlineNanos = System.nanoTime() + mOverflowBlockTimeout.toNanos();
+        try {
+            long remaining;
+            while (mQueuedBytes + bytes > mMaxQueuedBytes && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                checkOpen();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mQueuedBytes + bytes <= mMaxQueuedBytes;
+    }
+
+    /**
+     * Drops failed messages, then ready batches, then pending messages, from the lowest
+     * priority lane up, until the given number of bytes fit in the budget.
+     */
+    private void dropOldest(long bytes) {
+        while (mQueuedBytes + bytes > mMaxQueuedBytes && ! mUndelivered.isEmpty()) {
+            QueuedMessage dropped = mUndelivered.remove(0);
+            mUndeliveredBytes -= dropped.getBytes();
+            release(dropped.getBytes(), 1);
+            dropped.release();
+            mDroppedMessages++;
+        }
+        for (int i = mLanes.size() - 1; i >= 0 && mQueuedBytes + bytes > mMaxQueuedBytes; i--) {
+            LaneState lane = mLanes.get(i);
+            while (mQueuedBytes + bytes > mMaxQueuedBytes && ! lane.mReady.isEmpty()) {
+                Batch dropped = lane.mReady.poll();
+                release(dropped.mBytes, dropped.mMessages.size());
+                for (QueuedMessage queued : dropped.mMessages) {
+                    queued.release();
+                }
+                mDroppedMessages += dropped.mMessages.size();
+            }
+            while (mQueuedBytes + bytes > mMaxQueuedBytes && ! lane.mPending.isEmpty()) {
+                QueuedMessage dropped = lane.mPending.remove(0);
+                lane.mPendingBytes -= dropped.getBytes();
+                release(dropped.getBytes(), 1);
+                dropped.release();
+                mDroppedMessages++;
+            }
+        }
+    }
+
+    private boolean spill(String json, long builtNanos, long[] traitHashes) {
+        try {
+            mSpill.append(json, builtNanos, traitHashes);
+            mSpilledMessages++;
+            return true;
+        } catch (IOException e) {
+            mDroppedMessages++;
+            return false;
+        }
+    }
+
+    /**
+     * Queues spilled messages again, oldest first, while the next one fits in the given budget.
+     */
+    private void unspill(long maxQueuedBytes) {
+        if (mSpill == null) {
+            return;
+        }
+        try {
+            while (! mSpill.isEmpty()) {
+                SpillFile.Record record = mSpill.peek();
+                long bytes = utf8Length(record.mJson);
+                if (mQueuedBytes + bytes > maxQueuedBytes) {
+                    break;
+                }
+                queue(mSpill.poll(), record.mJson, bytes, record.mBuiltNanos).mTraitHashes = record.mTraitHashes;
+            }
+        } catch (IOException e) {
+            // The rest of the file can't be read back.
+            mDroppedMessages += mSpill.size();
+            mSpill.reset();
+        }
+    }
+
+    /**
+     * @return the size of the string encoded as UTF-8, without encoding it
+     */
+    private static long utf8Length(String value) {
+        long bytes = value.length();
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                // Three bytes, or four for a surrogate pair counted as two chars.
+                bytes += Character.isSurrogate(c) ? 1 : 2;
+            } else if (c >= 0x80) {
+                bytes += 1;
+            }
+        }
+        return bytes;
+    }
+
+    private void release(long bytes, int messages) {
+        mQueuedBytes -= bytes;
+        mQueuedMessages -= messages;
+        notifyAll();
+    }
+
+    private LaneState route(String type, String eventName) {
+        for (LaneState lane : mLanes) {
+            if (lane.mLane.accepts(type, eventName)) {
+                return lane;
+            }
+        }
+        throw new IllegalStateException("No delivery lane accepts " + type + " " + eventName);
+    }
+
+    private void scheduleLinger(final LaneState lane) {
+        final long generation = lane.mGeneration;
+        mLingerTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DeliveryQueue.this) {
+                    if (lane.mGeneration == generation) {
+                        seal(lane);
+                        pump(lane);
+                    }
+                }
+            }
+        }, lane.mLingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void sharePermits(int maxInFlight) {
+        mSharedLimit = maxInFlight;
+        int totalWeight = 0;
+        for (LaneState lane : mLanes) {
+            totalWeight += lane.mLane.getWeight();
+        }
+        for (LaneState lane : mLanes) {
+            lane.mPermits = Math.max(1, maxInFlight * lane.mLane.getWeight() / totalWeight);
+        }
+    }
+
+    private void sealAll() {
+        for (LaneState lane : mLanes) {
+            seal(lane);
+        }
+        for (LaneState lane : mLanes) {
+            pump(lane);
+        }
+    }
+
+    private void seal(LaneState lane) {
+        if (! lane.mPending.isEmpty()) {
+            Batch batch = new Batch(lane.mPending, lane.mPendingBytes);
+            if (mTracer != null) {
+                batch.mBatchedNanos = System.nanoTime();
+                mTracer.batched(batch.mMessages, batch.mBatchedNanos);
+            }
+            lane.mReady.add(batch);
+            lane.mPending = new ArrayList<QueuedMessage>();
+            lane.mPendingBytes = 0;
+            lane.mGeneration++;
+        }
+    }
+
+    private void pump(LaneState lane) {
+        // The events endpoint's limit doesn't apply to batches handed to a forwarding agent.
+        ConcurrencyLimiter limiter = forwardingAgent() == null ? mApi.getImportLimiter() : null;
+        if (limiter != null && limiter.getLimit() != mSharedLimit) {
+            // Lanes keep their weighted share of whatever the limit has adapted to.
+            sharePermits(limiter.getLimit());
+        }
+        while (lane.mInFlight < lane.mPermits && ! lane.mReady.isEmpty()) {
+            if (limiter != null && ! limiter.tryAcquire()) {
+                // Sent when a request finishes and frees room under the limit.
+                break;
+            }
+            Batch batch = lane.mReady.poll();
+            lane.mInFlight++;
+            mInFlight.add(batch);
+            mSender.execute(new Send(lane, batch, limiter));
+        }
+    }
+
+    private boolean isIdle() {
+        if (! mInFlight.isEmpty()) {
+            return false;
+        }
+        for (LaneState lane : mLanes) {
+            if (! lane.mReady.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isDrained() {
+        if (! isIdle() || (mSpill != null && ! mSpill.isEmpty())) {
+            return false;
+        }
+        for (LaneState lane : mLanes) {
+            if (! lane.mPending.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<JSONObject> takeUndelivered() {
+        List<QueuedMessage> undelivered = mUndelivered;
+        mUndelivered = new ArrayList<QueuedMessage>();
+        release(mUndeliveredBytes, undelivered.size());
+        mUndeliveredBytes = 0;
+        return toMessages(undelivered);
+    }
+
+    /**
+     * Decodes queued messages and releases their storage.
+     */
+    private static List<JSONObject> toMessages(List<QueuedMessage> queued) {
+        List<JSONObject> messages = new ArrayList<JSONObject>(queued.size());
+        for (QueuedMessage message : queued) {
+            messages.add(message.getMessage());
+            message.release();
+        }
+        return messages;
+    }
+
+    /**
+     * Sends a batch through the API's endpoints, split by user when they are routed by user.
+     *
+     * @return the messages that were refused or could not be sent
+     */
+    private List<QueuedMessage> sendRouted(Batch sending) {
+        List<QueuedMessage> batch = sending.mMessages;
+        ForwardingAgent.Connection agent = forwardingAgent();
+        if (agent != null) {
+            return forward(agent, sending);
+        }
+
+        EndpointPool endpoints = mApi.getEndpoints();
+        Map<String, List<QueuedMessage>> groups;
+        if (endpoints.getRouting() == EndpointRouting.USER_HASH) {
+            List<String> keys = new ArrayList<String>(batch.size());
+            for (QueuedMessage queued : batch) {
+                keys.add(queued.mUserId);
+            }
+            groups = endpoints.partition(batch, keys);
+        } else {
+            groups = Collections.singletonMap(endpoints.next(), batch);
+        }
+        final Batch counted = sending;
+        EndpointPool.Attempt<QueuedMessage> attempt = new EndpointPool.Attempt<QueuedMessage>() {
+            @Override
+            public boolean send(String endpointUrl, List<QueuedMessage> messages) throws IOException {
+                counted.mAttempts++;
+                return DeliveryQueue.this.send(messages, endpointUrl);
+            }
+        };
+
+        List<QueuedMessage> undelivered = new ArrayList<QueuedMessage>();
+        for (Map.Entry<String, List<QueuedMessage>> group : groups.entrySet()) {
+            List<QueuedMessage> messages = group.getValue();
+            List<String> keys = new ArrayList<String>(messages.size());
+            for (QueuedMessage queued : messages) {
+                keys.add(queued.mUserId);
+            }
+            try {
+                undelivered.addAll(endpoints.send(group.getKey(), messages, keys, attempt));
+            } catch (IOException e) {
+                undelivered.addAll(messages);
+            } catch (RuntimeException e) {
+                undelivered.addAll(messages);
+            }
+        }
+        return undelivered;
+    }
+
+    /**
+     * @return the forwarding agent batches are handed to, or null if they are written to a file sink or sent over HTTP
+     */
+    private ForwardingAgent.Connection forwardingAgent() {
+        return mApi.getFileSink() == null ? mApi.getForwardingAgent() : null;
+    }
+
+    /**
+     * Hands a batch to the forwarding agent, outside the events endpoints' health checks and failover.
+     *
+     * @return the messages after those the agent queued
+     */
+    private List<QueuedMessage> forward(ForwardingAgent.Connection agent, Batch sending) {
+        List<QueuedMessage> batch = sending.mMessages;
+        sending.mAttempts++;
+        int queued = 0;
+        try {
+            PooledBuffer buffer = PooledBuffer.forThread();
+            for (QueuedMessage message : batch) {
+                message.writeJson(buffer);
+                buffer.write('\n');
+            }
+            queued = mApi.forward(agent, buffer, batch.size());
+        } catch (IOException e) {
+            // reported as undelivered
+        } catch (RuntimeException e) {
+            // reported as undelivered
+        }
+        return new ArrayList<QueuedMessage>(batch.subList(queued, batch.size()));
+    }
+
+    /**
+     * Sends a batch, writing JSON directly from its stored encoding when possible.
+     */
+    private boolean send(List<QueuedMessage> batch, String endpointUrl) throws IOException {
+        FileSink sink = mApi.getFileSink();
+        if (sink != null) {
+            sink.writeQueued(batch, mApi.getBatchEncoder());
+            return true;
+        }
+        boolean encoded = mApi.getBatchEncoder() instanceof JsonBatchEncoder;
+        for (int i = 0; encoded && i < batch.size(); i++) {
+            encoded = batch.get(i).isEncoded();
+        }
+
+        if (encoded) {
+            PooledBuffer buffer = PooledBuffer.forThread();
+            buffer.write('[');
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    buffer.write(',');
+                }
+                batch.get(i).writeJson(buffer);
+            }
+            buffer.write(']');
+            return mApi.sendData(buffer.array(), buffer.size(), "application/json", endpointUrl);
+        }
+
+        if (mApi.getBatchEncoder() instanceof JsonBatchEncoder) {
+            // Messages queued as JSONObjects are sent as they were serialized to count their size.
+            StringBuilder json = new StringBuilder();
+            json.append('[');
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    json.append(',');
+                }
+                json.append(batch.get(i).toJson());
+            }
+            json.append(']');
+            return mApi.sendData(json.toString(), endpointUrl);
+        }
+
+        List<JSONObject> messages = new ArrayList<JSONObject>(batch.size());
+        for (QueuedMessage message : batch) {
+            messages.add(message.getMessage());
+        }
+        return mApi.sendBatch(messages, endpointUrl);
+    }
+
+    private class Send implements Runnable {
+        Send(LaneState lane, Batch batch, ConcurrencyLimiter limiter) {
+            mLane = lane;
+            mBatch = batch;
+            mLimiter = limiter;
+        }
+
+        @Override
+        public void run() {
+            long sentNanos = 0;
+            if (mTracer != null) {
+                sentNanos = System.nanoTime();
+                mTracer.sent(mBatch.mBatchedNanos, sentNanos);
+            }
+            List<QueuedMessage> undelivered = mBatch.mMessages;
+            long startNanos = System.nanoTime();
+            try {
+                undelivered = sendRouted(mBatch);
+            } catch (RuntimeException e) {
+                // reported as undelivered
+            }
+            boolean accepted = undelivered.isEmpty();
+            if (mLimiter != null) {
+                mLimiter.release(System.nanoTime() - startNanos, ! accepted);
+            }
+
+            long latencyNanos = System.nanoTime() - startNanos;
+            Set<QueuedMessage> failed = Collections.newSetFromMap(new IdentityHashMap<QueuedMessage, Boolean>());
+            failed.addAll(undelivered);
+
+            if (mTracer != null) {
+                long acknowledgedNanos = System.nanoTime();
+                if (accepted) {
+                    mTracer.acknowledged(mBatch.mMessages, mBatch.mBatchedNanos, sentNanos, acknowledgedNanos, true);
+                } else {
+                    // The part of a partly failed batch that was accepted still counts toward stage latency.
+                    List<QueuedMessage> delivered = new ArrayList<QueuedMessage>(mBatch.mMessages.size() - failed.size());
+                    for (QueuedMessage queued : mBatch.mMessages) {
+                        if (! failed.contains(queued)) {
+                            delivered.add(queued);
+                        }
+                    }
+                    if (! delivered.isEmpty()) {
+                        mTracer.acknowledged(delivered, mBatch.mBatchedNanos, sentNanos, acknowledgedNanos, true);
+                    }
+                    mTracer.acknowledged(undelivered, mBatch.mBatchedNanos, sentNanos, acknowledgedNanos, false);
+                }
+            }
+            if (mApi.getDeliveryListener() != null) {
+                // Message ids are read before accepted messages give back their arena memory.
+                List<String> acceptedIds = new ArrayList<String>(mBatch.mMessages.size() - failed.size());
+                List<String> failedIds = new ArrayList<String>(failed.size());
+                for (QueuedMessage queued : mBatch.mMessages) {
+                    if (failed.contains(queued)) {
+                        failedIds.add(queued.getMessageId());
+                    } else {
+                        acceptedIds.add(queued.getMessageId());
+                    }
+                }
+                mApi.notifyDelivery(new DeliveryResult(mLane.mLane.getName(), acceptedIds, failedIds, latencyNanos, mBatch.mAttempts));
+            }
+            TraitDeltaCache traits = mApi.getTraitDeltas();
+            if (traits != null) {
+                for (QueuedMessage queued : mBatch.mMessages) {
+                    if (queued.mTraitHashes != null && ! failed.contains(queued)) {
+                        traits.acknowledge(queued.mUserId, queued.mTraitHashes);
+                    }
+                }
+            }
+
+            synchronized (DeliveryQueue.this) {
+                mLane.mInFlight--;
+                if (mInFlight.remove(mBatch)) {
+                    long failedBytes = 0;
+                    for (QueuedMessage queued : mBatch.mMessages) {
+                        if (failed.contains(queued)) {
+                            failedBytes += queued.getBytes();
+                        } else {
+                            queued.release();
+                        }
+                    }
+                    release(mBatch.mBytes - failedBytes, mBatch.mMessages.size() - failed.size());
+                    // Still held in memory until reported by flush or close.
+                    mUndelivered.addAll(undelivered);
+                    mUndeliveredBytes += failedBytes;
+                    if (! mClosed) {
+                        unspill(mMaxQueuedBytes);
+                    }
+                }
+                // ELSE close has already reported this batch
+                // Any lane may use the room this request leaves under an adaptive limit.
+                pumpAll();
+                DeliveryQueue.this.notifyAll();
+            }
+        }
+
+        private final LaneState mLane;
+        private final Batch mBatch;
+        private final ConcurrencyLimiter mLimiter;
+    }
+
+    private static class Batch {
+        Batch(List<QueuedMessage> messages, long bytes) {
+            mMessages = messages;
+            mBytes = bytes;
+        }
+
+        final List<QueuedMessage> mMessages;
+        final long mBytes;
+        long mBatchedNanos = 0;
+        // Requests made to send the batch, only touched by the thread sending it.
+        int mAttempts = 0;
+    }
+
+    private static class LaneState {
+        LaneState(DeliveryLane lane) {
+            mLane = lane;
+            mLingerMillis = lane.getLingerMillis();
+        }
+
+        final DeliveryLane mLane;
+        int mPermits = 1;
+        long mLingerMillis;
+        List<QueuedMessage> mPending = new ArrayList<QueuedMessage>();
+        long mPendingBytes = 0;
+        final Deque<Batch> mReady = new ArrayDeque<Batch>();
+        int mInFlight = 0;
+        long mGeneration = 0;
+    }
+
+    private final ConnectoAPI mApi;
+    private final List<LaneState> mLanes;
+    private final long mMaxQueuedBytes;
+    private final OverflowPolicy mOverflowPolicy;
+    private final Duration mOverflowBlockTimeout;
+    private final SpillFile mSpill;
+    private final ScheduledExecutorService mLingerTimer;
+    private final ExecutorService mSender;
+    private int mSharedLimit;
+    private final Set<Batch> mInFlight = Collections.newSetFromMap(new IdentityHashMap<Batch, Boolean>());
+    private final OffHeapArena mArena;
+    private final LifecycleTracer mTracer;
+    private List<QueuedMessage> mUndelivered = new ArrayList<QueuedMessage>();
+    private long mUndeliveredBytes = 0;
+    private long mQueuedBytes = 0;
+    private long mQueuedMessages = 0;
+    private long mDroppedMessages = 0;
+    private long mSpilledMessages = 0;
+    private boolean mClosed = false;
+
+    // Outcomes of admit()
+    private static final int QUEUE = 0;
+    private static final int SPILLED = 1;
+    private static final int DROPPED = 2;
+
+    /* package */
+    static final long DEFAULT_LINGER_MILLIS = 1000;
+}
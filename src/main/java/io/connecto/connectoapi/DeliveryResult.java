@@ -0,0 +1,65 @@
+package io.connecto.connectoapi;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of sending one batch of messages.
+ *
+ * @see DeliveryListener
+ */
+public class DeliveryResult {
+
+    /* package */
+    DeliveryResult(String laneName, List<String> acceptedMessageIds, List<String> failedMessageIds,
+                   long latencyNanos, int attempts) {
+        mLaneName = laneName;
+        mAcceptedMessageIds = Collections.unmodifiableList(acceptedMessageIds);
+        mFailedMessageIds = Collections.unmodifiableList(failedMessageIds);
+        mLatencyNanos = latencyNanos;
+        mAttempts = attempts;
+    }
+
+    /**
+     * @return the delivery lane the batch was queued in, or null if it was sent by #{@link ConnectoAPI#deliver(ClientDelivery)}
+     */
+    public String getLaneName() { return mLaneName; }
+
+    /**
+     * @return the ids of messages the server accepted
+     */
+    public List<String> getAcceptedMessageIds() { return mAcceptedMessageIds; }
+
+    /**
+     * @return the ids of messages that were refused or could not be sent
+     */
+    public List<String> getFailedMessageIds() { return mFailedMessageIds; }
+
+    /**
+     * @return true if every message in the batch was accepted
+     */
+    public boolean isAccepted() { return mFailedMessageIds.isEmpty(); }
+
+    /**
+     * @return the time taken to send the batch, across every attempt
+     */
+    public Duration getLatency() { return Duration.ofNanos(mLatencyNanos); }
+
+    /**
+     * @return how many requests were made, more than one when the batch failed over to another endpoint
+     */
+    public int getAttempts() { return mAttempts; }
+
+    @Override
+    public String toString() {
+        return "DeliveryResult(lane=" + mLaneName + ", accepted=" + mAcceptedMessageIds.size()
+                + ", failed=" + mFailedMessageIds.size() + ", latency=" + getLatency() + ", attempts=" + mAttempts + ")";
+    }
+
+    private final String mLaneName;
+    private final List<String> mAcceptedMessageIds;
+    private final List<String> mFailedMessageIds;
+    private final long mLatencyNanos;
+    private final int mAttempts;
+}
@@ -0,0 +1,72 @@
+package io.connecto.connectoapi;
+
+/**
+ * A snapshot of the state of the messages queued with #{@link ConnectoAPI#enqueue(org.json.JSONObject)}.
+ *
+ * @see ConnectoAPI#getDeliveryStats()
+ */
+public class DeliveryStats {
+
+    /* package */
+    DeliveryStats(long queuedMessages, long queuedBytes, long maxQueuedBytes, int inFlightRequests,
+                  long droppedMessages, long spilledMessages, long spillBacklog) {
+        mQueuedMessages = queuedMessages;
+        mQueuedBytes = queuedBytes;
+        mMaxQueuedBytes = maxQueuedBytes;
+        mInFlightRequests = inFlightRequests;
+        mDroppedMessages = droppedMessages;
+        mSpilledMessages = spilledMessages;
+        mSpillBacklog = spillBacklog;
+    }
+
+    /**
+     * @return messages held in memory, waiting to be sent, being sent, or that failed since the last flush
+     */
+    public long getQueuedMessages() { return mQueuedMessages; }
+
+    /**
+     * @return the encoded size of the messages held in memory
+     */
+    public long getQueuedBytes() { return mQueuedBytes; }
+
+    /**
+     * @return the byte budget of the queue
+     */
+    public long getMaxQueuedBytes() { return mMaxQueuedBytes; }
+
+    /**
+     * @return requests currently being sent
+     */
+    public int getInFlightRequests() { return mInFlightRequests; }
+
+    /**
+     * @return messages dropped by the overflow policy since the queue started
+     */
+    public long getDroppedMessages() { return mDroppedMessages; }
+
+    /**
+     * @return messages written to the spill file since the queue started
+     */
+    public long getSpilledMessages() { return mSpilledMessages; }
+
+    /**
+     * @return messages currently in the spill file, waiting to be queued again
+     */
+    public long getSpillBacklog() { return mSpillBacklog; }
+
+    @Override
+    public String toString() {
+        return "DeliveryStats(queuedMessages=" + mQueuedMessages + ", queuedBytes=" + mQueuedBytes
+                + ", maxQueuedBytes=" + mMaxQueuedBytes + ", inFlightRequests=" + mInFlightRequests
+                + ", droppedMessages=" + mDroppedMessages + ", spilledMessages=" + mSpilledMessages
+                + ", spillBacklog=" + mSpillBacklog + ")";
+    }
+
+    private final long mQueuedMessages;
+    private final long mQueuedBytes;
+    private final long mMaxQueuedBytes;
+    private final int mInFlightRequests;
+    private final long mDroppedMessages;
+    private final long mSpilledMessages;
+    private final long mSpillBacklog;
+}
@@ -0,0 +1,88 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable Connecto message, already encoded as UTF-8 JSON by an #{@link EventWriter}.
+ *
+ * Queuing an EncodedMessage with #{@link ConnectoAPI#enqueue(EncodedMessage)} holds and sends
+ * its bytes as they are, without building or serializing a JSONObject.
+ */
+public final class EncodedMessage {
+
+    /* package */
+    EncodedMessage(byte[] json, String type, String eventName, String userId, int messageIdOffset, long builtNanos) {
+        mJson = json;
+        mType = type;
+        mEventName = eventName;
+        mUserId = userId;
+        mMessageIdOffset = messageIdOffset;
+        mBuiltNanos = builtNanos;
+    }
+
+    /**
+     * @return the message type, for example "track" or "identify"
+     */
+    public String getType() { return mType; }
+
+    /**
+     * @return the event name, or null for messages that are not events
+     */
+    public String getEventName() { return mEventName; }
+
+    /**
+     * @return the user the message is about, or null
+     */
+    public String getUserId() { return mUserId; }
+
+    /**
+     * @return the encoded size of the message in bytes
+     */
+    public int size() { return mJson.length; }
+
+    public String getMessageId() {
+        return new String(mJson, mMessageIdOffset, MESSAGE_ID_LENGTH, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the message decoded into a new JSONObject
+     */
+    public JSONObject toJSONObject() {
+        try {
+            return new JSONObject(toString());
+        } catch (JSONException e) {
+            throw new RuntimeException("Encoded Connecto message could not be decoded.", e);
+        }
+    }
+
+    /**
+     * @return the message as JSON text
+     */
+    @Override
+    public String toString() {
+        return new String(mJson, StandardCharsets.UTF_8);
+    }
+
+    /* package */
+    byte[] bytes() {
+        return mJson;
+    }
+
+    /* package */
+    long getBuiltNanos() {
+        return mBuiltNanos;
+    }
+
+    /* package */
+    static final int MESSAGE_ID_LENGTH = 36;
+
+    private final byte[] mJson;
+    private final String mType;
+    private final String mEventName;
+    private final String mUserId;
+    private final int mMessageIdOffset;
+    private final long mBuiltNanos;
+}
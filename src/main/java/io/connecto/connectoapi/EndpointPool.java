@@ -0,0 +1,387 @@
+package io.connecto.connectoapi;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The events endpoints a ConnectoAPI sends to, and which of them are healthy.
+ *
+ * Endpoints are ejected passively, after consecutive failed sends or when their recent
+ * latency is far above the other endpoints', and actively, when a periodic health check
+ * fails. Ejected endpoints are re-added once a health check succeeds. The last healthy
+ * endpoint is never ejected, so delivery degrades to one endpoint rather than stopping.
+ */
+/* package */
+class EndpointPool {
+
+    interface Attempt<T> {
+        /**
+         * @return true if the endpoint accepted the messages
+         * @throws IOException if the endpoint could not be reached
+         */
+        boolean send(String endpointUrl, List<T> messages) throws IOException;
+    }
+
+    EndpointPool(List<String> urls, EndpointRouting routing) {
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one events endpoint is required");
+        }
+        mRouting = routing;
+        mEndpoints = new ArrayList<Endpoint>(urls.size());
+        for (String url : urls) {
+            mEndpoints.add(new Endpoint(url));
+        }
+
+        int points = mEndpoints.size() * VIRTUAL_NODES;
+        long[] ring = new long[points];
+        for (int e = 0; e < mEndpoints.size(); e++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                int hash = mix((mEndpoints.get(e).mUrl + "#" + v).hashCode());
+                // hash in the high bits, endpoint index in the low bits
+                ring[e * VIRTUAL_NODES + v] = ((long) hash << 32) | e;
+            }
+        }
+        Arrays.sort(ring);
+        mRingHashes = new int[points];
+        mRingEndpoints = new int[points];
+        for (int i = 0; i < points; i++) {
+            mRingHashes[i] = (int) (ring[i] >> 32);
+            mRingEndpoints[i] = (int) ring[i];
+        }
+    }
+
+    EndpointRouting getRouting() {
+        return mRouting;
+    }
+
+    /**
+     * @return the next healthy endpoint in turn
+     */
+    String next() {
+        int start = mNext.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < mEndpoints.size(); i++) {
+            Endpoint endpoint = mEndpoints.get((start + i) % mEndpoints.size());
+            if (endpoint.mHealthy) {
+                return endpoint.mUrl;
+            }
+        }
+        return mEndpoints.get(start % mEndpoints.size()).mUrl;
+    }
+
+    /**
+     * @return the endpoint for the given routing key, with ROUND_ROBIN or an empty key the next in turn
+     */
+    String forKey(String key) {
+        if (mRouting != EndpointRouting.USER_HASH || key == null || key.isEmpty()) {
+            return next();
+        }
+        String url = walkRing(key, null);
+        return url == null ? next() : url;
+    }
+
+    /**
+     * @return the first healthy endpoint at or after the key on the ring, other than the one skipped, or null if there is none
+     */
+    private String walkRing(String key, String skippedUrl) {
+        int hash = mix(key.hashCode());
+        int i = Arrays.binarySearch(mRingHashes, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (int n = 0; n < mRingHashes.length; n++) {
+            Endpoint endpoint = mEndpoints.get(mRingEndpoints[(i + n) % mRingHashes.length]);
+            if (endpoint.mHealthy && ! endpoint.mUrl.equals(skippedUrl)) {
+                return endpoint.mUrl;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sends messages through the given endpoint, recording the outcome, and if it cannot be reached
+     * tries once more through other healthy endpoints. With USER_HASH routing each message goes to
+     * its key's successor on the hash ring, where the key's user moves if the endpoint is ejected,
+     * so the messages may be split between several endpoints. Otherwise they all go to the next
+     * endpoint in turn.
+     *
+     * @param keys the routing key of each message
+     * @return the messages that were refused, or could not be sent to any endpoint
+     * @throws IOException if no endpoint the messages were sent to could be reached
+     */
+    <T> List<T> send(String endpointUrl, List<T> messages, List<String> keys, Attempt<T> attempt) throws IOException {
+        try {
+            return sendTo(endpointUrl, messages, attempt) ? Collections.<T>emptyList() : messages;
+        } catch (IOException e) {
+            Map<String, List<T>> successors = failover(endpointUrl, messages, keys);
+            if (successors == null) {
+                throw e;
+            }
+
+            List<T> unsent = new ArrayList<T>();
+            IOException failure = e;
+            boolean reached = false;
+            for (Map.Entry<String, List<T>> successor : successors.entrySet()) {
+                try {
+                    if (! sendTo(successor.getKey(), successor.getValue(), attempt)) {
+                        unsent.addAll(successor.getValue());
+                    }
+                    reached = true;
+                } catch (IOException again) {
+                    unsent.addAll(successor.getValue());
+                    failure = again;
+                }
+            }
+            if (! reached) {
+                throw failure;
+            }
+            return unsent;
+        }
+    }
+
+    /**
+     * Starts checking every endpoint at the given interval. Does nothing with a single endpoint,
+     * which is never ejected.
+     */
+    synchronized void startHealthChecks(final ConnectoAPI api, Duration interval) {
+        if (mEndpoints.size() < 2 || mChecker != null) {
+            return;
+        }
+        ScheduledThreadPoolExecutor checker = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("connecto-health-check"));
+        checker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        checker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkAll(api);
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        mChecker = checker;
+    }
+
+    synchronized void stopHealthChecks() {
+        if (mChecker != null) {
+            mChecker.shutdownNow();
+            mChecker = null;
+        }
+    }
+
+    /**
+     * Runs one round of active health checks.
+     */
+    void checkAll(ConnectoAPI api) {
+        for (Endpoint endpoint : mEndpoints) {
+            boolean healthy;
+            try {
+                healthy = api.checkEndpoint(endpoint.mUrl);
+            } catch (IOException e) {
+                healthy = false;
+            } catch (RuntimeException e) {
+                healthy = false;
+            }
+
+            synchronized (this) {
+                if (healthy && ! endpoint.mHealthy) {
+                    endpoint.mHealthy = true;
+                    endpoint.mConsecutiveFailures = 0;
+                    endpoint.mLatencyNanos = 0;
+                    endpoint.mSamples = 0;
+                } else if (! healthy) {
+                    eject(endpoint);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the URLs of the endpoints currently receiving batches
+     */
+    synchronized List<String> getHealthyEndpoints() {
+        List<String> healthy = new ArrayList<String>();
+        for (Endpoint endpoint : mEndpoints) {
+            if (endpoint.mHealthy) {
+                healthy.add(endpoint.mUrl);
+            }
+        }
+        return Collections.unmodifiableList(healthy);
+    }
+
+    /**
+     * Splits messages by the endpoint of their routing key, keeping their order within each endpoint.
+     */
+    <T> Map<String, List<T>> partition(List<T> messages, List<String> keys) {
+        Map<String, List<T>> groups = new LinkedHashMap<String, List<T>>();
+        for (int i = 0; i < messages.size(); i++) {
+            String url = forKey(keys.get(i));
+            List<T> group = groups.get(url);
+            if (group == null) {
+                group = new ArrayList<T>();
+                groups.put(url, group);
+            }
+            group.add(messages.get(i));
+        }
+        return groups;
+    }
+
+    private <T> boolean sendTo(String endpointUrl, List<T> messages, Attempt<T> attempt) throws IOException {
+        long start = System.nanoTime();
+        try {
+            boolean accepted = attempt.send(endpointUrl, messages);
+            succeeded(endpointUrl, System.nanoTime() - start);
+            return accepted;
+        } catch (IOException e) {
+            failed(endpointUrl);
+            throw e;
+        }
+    }
+
+    /**
+     * Splits messages sent to a failed endpoint by where each should go instead, keeping their order.
+     *
+     * @return the messages by endpoint, or null if there is no other healthy endpoint
+     */
+    private synchronized <T> Map<String, List<T>> failover(String failedUrl, List<T> messages, List<String> keys) {
+        Map<String, List<T>> successors = new LinkedHashMap<String, List<T>>();
+        String unkeyed = null;
+        for (int i = 0; i < messages.size(); i++) {
+            String key = keys.get(i);
+            String url;
+            if (mRouting == EndpointRouting.USER_HASH && key != null && ! key.isEmpty()) {
+                url = walkRing(key, failedUrl);
+            } else {
+                // Messages without a key stay together on one endpoint.
+                if (unkeyed == null) {
+                    unkeyed = failover(failedUrl);
+                }
+                url = unkeyed;
+            }
+            if (url == null) {
+                return null;
+            }
+            List<T> group = successors.get(url);
+            if (group == null) {
+                group = new ArrayList<T>();
+                successors.put(url, group);
+            }
+            group.add(messages.get(i));
+        }
+        return successors;
+    }
+
+    private String failover(String failedUrl) {
+        for (int i = 0; i < mEndpoints.size(); i++) {
+            Endpoint endpoint = mEndpoints.get((mNext.getAndIncrement() & Integer.MAX_VALUE) % mEndpoints.size());
+            if (endpoint.mHealthy && ! endpoint.mUrl.equals(failedUrl)) {
+                return endpoint.mUrl;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void succeeded(String url, long nanos) {
+        Endpoint endpoint = find(url);
+        if (endpoint == null) {
+            return;
+        }
+        endpoint.mConsecutiveFailures = 0;
+        endpoint.mLatencyNanos = endpoint.mSamples == 0 ? nanos : (long) (endpoint.mLatencyNanos * (1 - LATENCY_WEIGHT) + nanos * LATENCY_WEIGHT);
+        endpoint.mSamples++;
+
+        if (endpoint.mHealthy && endpoint.mSamples >= MIN_LATENCY_SAMPLES) {
+            long others = medianLatencyExcept(endpoint);
+            if (others > 0 && endpoint.mLatencyNanos > others * SLOW_FACTOR
+                    && endpoint.mLatencyNanos - others > MIN_SLOW_NANOS) {
+                eject(endpoint);
+            }
+        }
+    }
+
+    private synchronized void failed(String url) {
+        Endpoint endpoint = find(url);
+        if (endpoint != null && ++endpoint.mConsecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+            eject(endpoint);
+        }
+    }
+
+    private void eject(Endpoint endpoint) {
+        if (! endpoint.mHealthy) {
+            return;
+        }
+        for (Endpoint other : mEndpoints) {
+            if (other != endpoint && other.mHealthy) {
+                endpoint.mHealthy = false;
+                return;
+            }
+        }
+        // ELSE this is the last healthy endpoint, keep using it
+    }
+
+    private long medianLatencyExcept(Endpoint excluded) {
+        List<Long> latencies = new ArrayList<Long>();
+        for (Endpoint endpoint : mEndpoints) {
+            if (endpoint != excluded && endpoint.mHealthy && endpoint.mSamples >= MIN_LATENCY_SAMPLES) {
+                latencies.add(endpoint.mLatencyNanos);
+            }
+        }
+        if (latencies.isEmpty()) {
+            return 0;
+        }
+        Collections.sort(latencies);
+        return latencies.get(latencies.size() / 2);
+    }
+
+    private Endpoint find(String url) {
+        for (Endpoint endpoint : mEndpoints) {
+            if (endpoint.mUrl.equals(url)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Spreads the bits of String.hashCode() over the ring (the MurmurHash3 finalizer).
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static class Endpoint {
+        Endpoint(String url) {
+            mUrl = url;
+        }
+
+        final String mUrl;
+        volatile boolean mHealthy = true;
+        int mConsecutiveFailures = 0;
+        long mLatencyNanos = 0;
+        int mSamples = 0;
+    }
+
+    private final EndpointRouting mRouting;
+    private final List<Endpoint> mEndpoints;
+    private final int[] mRingHashes;
+    private final int[] mRingEndpoints;
+    private final AtomicInteger mNext = new AtomicInteger();
+    private ScheduledExecutorService mChecker;
+
+    private static final int VIRTUAL_NODES = 100;
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final int MIN_LATENCY_SAMPLES = 5;
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final int SLOW_FACTOR = 3;
+    private static final long MIN_SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+}
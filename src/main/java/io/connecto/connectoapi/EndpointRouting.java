@@ -0,0 +1,20 @@
+package io.connecto.connectoapi;
+
+/**
+ * How batches are spread across the events endpoints given to
+ * #{@link ConnectoAPI#setEventsEndpoints(java.util.List, EndpointRouting)}.
+ */
+public enum EndpointRouting {
+    /**
+     * Each batch goes to the next healthy endpoint in turn.
+     */
+    ROUND_ROBIN,
+
+    /**
+     * Batches are split by userId, and each user's messages always go to the same endpoint
+     * while it is healthy, so an endpoint sees every message of a user in the order it was sent.
+     * Endpoints are placed on a consistent hash ring, so adding or ejecting one only moves the
+     * users that mapped to it.
+     */
+    USER_HASH
+}
@@ -0,0 +1,104 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Encodes batches as JSON envelopes that carry the fields shared by their messages once.
+ *
+ * Messages from #{@link MessageBuilder} repeat the same writeKey, channel, library context and,
+ * usually, sentAt minute. This encoder groups a batch by those fields and writes
+ * <pre>
+ * {@code
+ *     {"envelopes":[{"writeKey":"...","channel":"JDK","sentAt":"...","context":{...},"batch":[{...},{...}]}]}
+ * }
+ * </pre>
+ * where each message in "batch" keeps only its own fields. The import endpoint must accept
+ * the envelope content type.
+ */
+public class EnvelopeBatchEncoder implements BatchEncoder {
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public void encode(List<JSONObject> messages, OutputStream out) throws IOException {
+        StringBuilder json = new StringBuilder(messages.size() * 128);
+        try {
+            json.append("{\"envelopes\":[");
+            boolean firstEnvelope = true;
+            for (List<JSONObject> group : ClientDelivery.groupBySharedContext(messages).values()) {
+                if (! firstEnvelope) {
+                    json.append(',');
+                }
+                firstEnvelope = false;
+
+                json.append('{');
+                JSONObject shared = group.get(0);
+                for (String field : ClientDelivery.SHARED_FIELDS) {
+                    Object value = shared.opt(field);
+                    if (value != null) {
+                        appendMember(json, field, value);
+                        json.append(',');
+                    }
+                }
+
+                json.append("\"batch\":[");
+                for (int i = 0; i < group.size(); i++) {
+                    if (i > 0) {
+                        json.append(',');
+                    }
+                    appendUnshared(json, group.get(i));
+                }
+                json.append("]}");
+            }
+            json.append("]}");
+        } catch (JSONException e) {
+            throw new RuntimeException("Apparently valid Connecto message could not be interpreted.", e);
+        }
+
+        out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void appendUnshared(StringBuilder json, JSONObject message) throws JSONException {
+        json.append('{');
+        boolean first = true;
+        Iterator<?> keys = message.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (ClientDelivery.SHARED_FIELDS.contains(key)) {
+                continue;
+            }
+            if (! first) {
+                json.append(',');
+            }
+            first = false;
+            appendMember(json, key, message.get(key));
+        }
+        json.append('}');
+    }
+
+    private void appendMember(StringBuilder json, String key, Object value) throws JSONException {
+        json.append(JSONObject.quote(key)).append(':');
+        if (value == JSONObject.NULL) {
+            json.append("null");
+        } else if (value instanceof JSONObject || value instanceof JSONArray || value instanceof Boolean) {
+            json.append(value.toString());
+        } else if (value instanceof Number) {
+            json.append(JSONObject.numberToString((Number) value));
+        } else {
+            json.append(JSONObject.quote(value.toString()));
+        }
+    }
+
+    public static final String CONTENT_TYPE = "application/vnd.connecto.envelope+json";
+}
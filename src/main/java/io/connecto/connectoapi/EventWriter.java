@@ -0,0 +1,366 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes Connecto messages straight into a reusable buffer, producing the same JSON as
+ * #{@link MessageBuilder} without building intermediate JSONObjects.
+ *
+ * An EventWriter is confined to the thread that obtained it from #{@link MessageBuilder#writer()},
+ * and keeps its buffer, date formatter and current timestamp between calls, so the only
+ * allocation per message is the resulting #{@link EncodedMessage}. Properties are copied
+ * when the message is written, so they may be changed or reused afterwards.
+ *
+ * <pre>
+ * {@code
+ *     EncodedMessage message = messageBuilder.writer().event("ABCD", "Add to Cart", "track", props);
+ *     connectoApi.enqueue(message);
+ * }
+ * </pre>
+ */
+public final class EventWriter {
+
+    /* package */
+    EventWriter(String writeKey, boolean lifecycleTracing) {
+        mWriteKey = writeKey;
+        mLifecycleTracing = lifecycleTracing;
+        mDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /* package */
+    boolean isLifecycleTracing() {
+        return mLifecycleTracing;
+    }
+
+    /**
+     * @see MessageBuilder#event(String, String, String, JSONObject)
+     */
+    public EncodedMessage event(String distinctId, String eventName, String eventType, JSONObject properties) {
+        long builtNanos = mLifecycleTracing ? System.nanoTime() : 0;
+        int messageIdOffset = writeDefaultPayload(eventType);
+        writeField("event", eventName);
+        writeIds(distinctId);
+        writeKey("properties");
+        if (properties == null) {
+            mBuffer.write('{');
+            mBuffer.write('}');
+        } else {
+            writeValue(properties);
+        }
+        return finish(eventType, eventName, distinctId, messageIdOffset, builtNanos);
+    }
+
+    /**
+     * @throws IllegalArgumentException if traits is null or not intelligible as JSON
+     * @see MessageBuilder#identify(String, String, Object)
+     */
+    public EncodedMessage identify(String distinctId, String eventType, Object traits) {
+        if (null == traits) {
+            throw new IllegalArgumentException("Cannot send null traits, use JSONObject.NULL instead");
+        }
+        long builtNanos = mLifecycleTracing ? System.nanoTime() : 0;
+        int messageIdOffset = writeDefaultPayload(eventType);
+        writeKey("traits");
+        writeValue(traits);
+        writeIds(distinctId);
+        return finish(eventType, null, distinctId, messageIdOffset, builtNanos);
+    }
+
+    /**
+     * Starts a message with the fields of #{@link MessageBuilder#getDefaultPayload(String)}.
+     *
+     * @return the offset of the message id within the buffer
+     */
+    private int writeDefaultPayload(String eventType) {
+        if (mBuffer.array().length > PooledBuffer.MAX_RETAINED_SIZE) {
+            mBuffer = new PooledBuffer();
+        }
+        mBuffer.reset();
+        mBuffer.write('{');
+        writeFirstKey("sentAt");
+        mBuffer.write(sentAt(), 0, SENT_AT_LENGTH);
+        writeKey("context");
+        mBuffer.write(CONTEXT, 0, CONTEXT.length);
+        writeKey("messageId");
+        mBuffer.write('"');
+        int messageIdOffset = mBuffer.size();
+        writeRandomUuid();
+        mBuffer.write('"');
+        writeField("type", eventType);
+        writeField("channel", "JDK");
+        writeField("writeKey", mWriteKey);
+        return messageIdOffset;
+    }
+
+    private void writeIds(String distinctId) {
+        if (distinctId != null) {
+            writeKey("profileId");
+            writeString(distinctId);
+            writeKey("userId");
+            writeString(distinctId);
+        }
+    }
+
+    private EncodedMessage finish(String eventType, String eventName, String userId, int messageIdOffset, long builtNanos) {
+        mBuffer.write('}');
+        byte[] json = Arrays.copyOf(mBuffer.array(), mBuffer.size());
+        return new EncodedMessage(json, eventType, eventName, userId, messageIdOffset, builtNanos);
+    }
+
+    /**
+     * @return the quoted sentAt timestamp, formatted again only when the minute changes
+     */
+    private byte[] sentAt() {
+        long now = System.currentTimeMillis();
+        long minute = now / 60000;
+        if (minute != mSentAtMinute) {
+            String formatted = mDateFormat.format(new Date(minute * 60000));
+            mSentAt[0] = '"';
+            for (int i = 0; i < formatted.length(); i++) {
+                mSentAt[i + 1] = (byte) formatted.charAt(i);
+            }
+            mSentAt[SENT_AT_LENGTH - 1] = '"';
+            mSentAtMinute = minute;
+        }
+        return mSentAt;
+    }
+
+    /**
+     * Writes a version 4 UUID. The bits come from ThreadLocalRandom, which is unique enough
+     * for message ids and, unlike UUID.randomUUID(), does not contend on a shared SecureRandom.
+     */
+    private void writeRandomUuid() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long high = (random.nextLong() & ~0xf000L) | 0x4000L;
+        long low = (random.nextLong() & ~(0xcL << 60)) | (0x8L << 60);
+        writeHex(high >>> 32, 8);
+        mBuffer.write('-');
+        writeHex(high >>> 16, 4);
+        mBuffer.write('-');
+        writeHex(high, 4);
+        mBuffer.write('-');
+        writeHex(low >>> 48, 4);
+        mBuffer.write('-');
+        writeHex(low, 12);
+    }
+
+    private void writeHex(long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            mBuffer.write(HEX[(int) (value >>> shift) & 0xf]);
+        }
+    }
+
+    private void writeFirstKey(String key) {
+        writeString(key);
+        mBuffer.write(':');
+    }
+
+    private void writeKey(String key) {
+        mBuffer.write(',');
+        writeFirstKey(key);
+    }
+
+    /**
+     * Writes a string field, or nothing if the value is null, as JSONObject.put does.
+     */
+    private void writeField(String key, String value) {
+        if (value != null) {
+            writeKey(key);
+            writeString(value);
+        }
+    }
+
+    private void writeValue(Object value) {
+        try {
+            if (value == null || value == JSONObject.NULL) {
+                mBuffer.write(NULL, 0, NULL.length);
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                byte[] literal = ((Boolean) value) ? TRUE : FALSE;
+                mBuffer.write(literal, 0, literal.length);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                writeLong(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                writeAscii(JSONObject.numberToString((Number) value));
+            } else if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject) value;
+                mBuffer.write('{');
+                Iterator<?> keys = object.keys();
+                boolean first = true;
+                while (keys.hasNext()) {
+                    String key = (String) keys.next();
+                    if (first) {
+                        writeFirstKey(key);
+                        first = false;
+                    } else {
+                        writeKey(key);
+                    }
+                    writeValue(object.get(key));
+                }
+                mBuffer.write('}');
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                mBuffer.write('[');
+                for (int i = 0; i < array.length(); i++) {
+                    if (i > 0) {
+                        mBuffer.write(',');
+                    }
+                    writeValue(array.get(i));
+                }
+                mBuffer.write(']');
+            } else if (value instanceof JSONString) {
+                writeUtf8(((JSONString) value).toJSONString());
+            } else if (value instanceof Map) {
+                writeValue(new JSONObject((Map) value));
+            } else if (value instanceof Collection) {
+                writeValue(new JSONArray((Collection) value));
+            } else if (value.getClass().isArray()) {
+                writeValue(new JSONArray(value));
+            } else {
+                // Matches JSONObject, which writes unknown values with toString()
+                writeString(value.toString());
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Cannot interpret value as a JSON payload", e);
+        }
+    }
+
+    private void writeLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            writeAscii(Long.toString(v));
+            return;
+        }
+        if (v < 0) {
+            mBuffer.write('-');
+            v = -v;
+        }
+        int digits = 1;
+        for (long bound = 10; digits < 19 && v >= bound; bound *= 10) {
+            digits++;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            mDigits[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+        mBuffer.write(mDigits, 0, digits);
+    }
+
+    private void writeAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            mBuffer.write(s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a quoted string, escaped as #{@link JSONObject#quote(String)} would.
+     */
+    private void writeString(String s) {
+        mBuffer.write('"');
+        char previous = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    mBuffer.write('\\');
+                    mBuffer.write(c);
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        mBuffer.write('\\');
+                    }
+                    mBuffer.write(c);
+                    break;
+                case '\b': writeEscape('b'); break;
+                case '\t': writeEscape('t'); break;
+                case '\n': writeEscape('n'); break;
+                case '\f': writeEscape('f'); break;
+                case '\r': writeEscape('r'); break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        writeEscape('u');
+                        writeHex(c, 4);
+                    } else if (c < 0x80) {
+                        mBuffer.write(c);
+                    } else {
+                        i = writeUtf8(s, i);
+                    }
+            }
+            previous = c;
+        }
+        mBuffer.write('"');
+    }
+
+    private void writeEscape(char c) {
+        mBuffer.write('\\');
+        mBuffer.write(c);
+    }
+
+    private void writeUtf8(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                mBuffer.write(c);
+            } else {
+                i = writeUtf8(s, i);
+            }
+        }
+    }
+
+    /**
+     * Writes the non-ASCII character at the given index.
+     *
+     * @return the index of the last char consumed
+     */
+    private int writeUtf8(String s, int i) {
+        char c = s.charAt(i);
+        if (c < 0x800) {
+            mBuffer.write(0xc0 | (c >> 6));
+            mBuffer.write(0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(++i));
+            mBuffer.write(0xf0 | (cp >> 18));
+            mBuffer.write(0x80 | ((cp >> 12) & 0x3f));
+            mBuffer.write(0x80 | ((cp >> 6) & 0x3f));
+            mBuffer.write(0x80 | (cp & 0x3f));
+        } else if (Character.isSurrogate(c)) {
+            mBuffer.write('?');
+        } else {
+            mBuffer.write(0xe0 | (c >> 12));
+            mBuffer.write(0x80 | ((c >> 6) & 0x3f));
+            mBuffer.write(0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private final String mWriteKey;
+    private final boolean mLifecycleTracing;
+    private final DateFormat mDateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
+    private final byte[] mSentAt = new byte[SENT_AT_LENGTH];
+    private final byte[] mDigits = new byte[19];
+    private long mSentAtMinute = -1;
+    private PooledBuffer mBuffer = new PooledBuffer();
+
+    // "yyyy-MM-ddTHH:mmZ" and its quotes
+    private static final int SENT_AT_LENGTH = 19;
+    private static final byte[] CONTEXT = "{\"library\":{\"name\":\"connecto-java\",\"version\":\"1.0\"}}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] FALSE = "false".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+}
@@ -0,0 +1,448 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes batches to local files instead of posting them to Connecto, for environments where
+ * a separate log pipeline ships events.
+ *
+ * Batches from any number of threads are appended to a shared buffer, and a single writer thread
+ * writes everything buffered with one write and, by default, one fsync per round. A batch is only
+ * reported sent once the round that wrote it has been synced, so many batches share each fsync.
+ *
+ * Files are named from the prefix and the time they were opened, and are rotated when they
+ * reach a size or an age. Rotated files can be gzipped in the background. Messages are written
+ * one per line as NDJSON, or in #{@link Format#BATCHES}, each batch encoded by the client's
+ * #{@link BatchEncoder} and prefixed with its length as a 4 byte big-endian integer.
+ *
+ * <pre>
+ * {@code
+ *     FileSink sink = new FileSink(new File("/var/spool/connecto"), "events", FileSink.Format.NDJSON);
+ *     sink.setMaxFileBytes(256 * 1024 * 1024);
+ *     connectoApi.setFileSink(sink);
+ *     ...
+ *     connectoApi.close();
+ *     sink.close();
+ * }
+ * </pre>
+ */
+public class FileSink implements AutoCloseable {
+
+    public enum Format {
+        /**
+         * One JSON message per line.
+         */
+        NDJSON,
+
+        /**
+         * Length-prefixed batches in the client's batch encoding.
+         */
+        BATCHES
+    }
+
+    /**
+     * @param directory where files are written, created if it does not exist
+     * @param prefix the start of every file name
+     * @param format how batches are written
+     */
+    public FileSink(File directory, String prefix, Format format) {
+        mDirectory = directory;
+        mPrefix = prefix;
+        mFormat = format;
+        mFileNameFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * @param maxFileBytes the size at which a file is rotated
+     */
+    public synchronized void setMaxFileBytes(long maxFileBytes) {
+        if (maxFileBytes < 1) {
+            throw new IllegalArgumentException("maxFileBytes must be positive");
+        }
+        mMaxFileBytes = maxFileBytes;
+    }
+
+    /**
+     * @param interval the age at which a file is rotated, or null to rotate by size only
+     */
+    public synchronized void setRotationInterval(Duration interval) {
+        mRotationNanos = interval == null ? 0 : interval.toNanos();
+    }
+
+    /**
+     * @param compress true to gzip files once they are rotated
+     */
+    public synchronized void setCompressRotated(boolean compress) {
+        mCompressRotated = compress;
+    }
+
+    /**
+     * @param sync false to skip fsync, so a batch is reported sent once it reaches the operating
+     *           system rather than the disk
+     */
+    public synchronized void setSync(boolean sync) {
+        mSync = sync;
+    }
+
+    /**
+     * @return the most recently rotated files that still exist, oldest first, by their final name,
+     *      which ends in .gz once compressed. Files are listed once any compression has finished.
+     *      At most #{@link #MAX_ROTATED_FILES} are remembered.
+     */
+    public synchronized List<File> getRotatedFiles() {
+        // Forget files the log pipeline has already shipped and deleted.
+        Iterator<File> files = mRotated.iterator();
+        while (files.hasNext()) {
+            if (! files.next().exists()) {
+                files.remove();
+            }
+        }
+        return new ArrayList<File>(mRotated);
+    }
+
+    /**
+     * Writes what is buffered, closes the current file and stops the writer thread.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread writer;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            writer = mWriter;
+            notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            closeFile();
+        }
+        mCompressor.shutdown();
+        try {
+            mCompressor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes a batch, returning once it is synced.
+     */
+    /* package */
+    void write(List<JSONObject> messages, BatchEncoder encoder) throws IOException {
+        PooledBuffer buffer = PooledBuffer.forThread();
+        if (mFormat == Format.NDJSON) {
+            for (JSONObject message : messages) {
+                buffer.write(message.toString().getBytes("utf-8"));
+                buffer.write('\n');
+            }
+        } else {
+            writeLengthPlaceholder(buffer);
+            encoder.encode(messages, buffer);
+            writeLength(buffer);
+        }
+        append(buffer.array(), buffer.size());
+    }
+
+    /**
+     * Writes a batch of queued messages, returning once it is synced. In NDJSON, messages held
+     * encoded are copied without being decoded.
+     */
+    /* package */
+    void writeQueued(List<QueuedMessage> messages, BatchEncoder encoder) throws IOException {
+        if (mFormat == Format.BATCHES) {
+            List<JSONObject> decoded = new ArrayList<JSONObject>(messages.size());
+            for (QueuedMessage message : messages) {
+                decoded.add(message.getMessage());
+            }
+            write(decoded, encoder);
+            return;
+        }
+
+        PooledBuffer buffer = PooledBuffer.forThread();
+        for (QueuedMessage message : messages) {
+            message.writeJson(buffer);
+            buffer.write('\n');
+        }
+        append(buffer.array(), buffer.size());
+    }
+
+    private static void writeLengthPlaceholder(PooledBuffer buffer) {
+        for (int i = 0; i < 4; i++) {
+            buffer.write(0);
+        }
+    }
+
+    private static void writeLength(PooledBuffer buffer) {
+        int length = buffer.size() - 4;
+        byte[] bytes = buffer.array();
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+    }
+
+    private synchronized void append(byte[] data, int length) throws IOException {
+        checkUsable();
+        startWriter();
+        while (mPending.size() > 0 && mPending.size() + length > MAX_PENDING_BYTES) {
+            waitForWriter();
+        }
+        mPending.write(data, 0, length);
+        long round = mPendingRound;
+        notifyAll();
+        while (mSyncedRound < round) {
+            waitForWriter();
+        }
+    }
+
+    private void waitForWriter() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for the file sink", e);
+        }
+        // Once closed, the writer still drains what was appended before.
+        if (mFailure != null) {
+            throw new IOException("File sink failed", mFailure);
+        }
+    }
+
+    private void checkUsable() throws IOException {
+        if (mFailure != null) {
+            throw new IOException("File sink failed", mFailure);
+        }
+        if (mClosed) {
+            throw new IOException("File sink has been closed");
+        }
+    }
+
+    private void startWriter() {
+        if (mWriter == null) {
+            mWriter = new DaemonThreadFactory("connecto-file-sink").newThread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            });
+            mWriter.start();
+        }
+    }
+
+    private void writeLoop() {
+        PooledBuffer writing = new PooledBuffer();
+        while (true) {
+            long round;
+            boolean sync;
+            synchronized (this) {
+                while (mPending.size() == 0 && ! mClosed) {
+                    try {
+                        // Wake up now and then to rotate files that have aged while idle.
+                        wait(ROTATION_CHECK_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (mPending.size() == 0) {
+                        rotateIfAged();
+                    }
+                }
+                if (mPending.size() == 0) {
+                    // closed and drained
+                    return;
+                }
+                PooledBuffer swap = mPending;
+                mPending = writing;
+                writing = swap;
+                round = mPendingRound++;
+                sync = mSync;
+                notifyAll();
+            }
+
+            try {
+                FileChannel channel;
+                synchronized (this) {
+                    rotateIfAged();
+                    if (mChannel != null && mFileBytes > 0 && mFileBytes + writing.size() > mMaxFileBytes) {
+                        rotate();
+                    }
+                    if (mChannel == null) {
+                        openFile();
+                    }
+                    channel = mChannel;
+                    mFileBytes += writing.size();
+                }
+
+                ByteBuffer bytes = ByteBuffer.wrap(writing.array(), 0, writing.size());
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                if (sync) {
+                    channel.force(false);
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    mFailure = e;
+                    notifyAll();
+                }
+                return;
+            }
+
+            writing.reset();
+            if (writing.array().length > PooledBuffer.MAX_RETAINED_SIZE * 16) {
+                writing = new PooledBuffer();
+            }
+            synchronized (this) {
+                mSyncedRound = round;
+                notifyAll();
+            }
+        }
+    }
+
+    private void rotateIfAged() {
+        if (mChannel != null && mRotationNanos > 0 && System.nanoTime() - mOpenedNanos >= mRotationNanos) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                mFailure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    private void openFile() throws IOException {
+        mDirectory.mkdirs();
+        String name = mPrefix + "-" + mFileNameFormat.format(new Date()) + "-" + (mFileSequence++)
+                + (mFormat == Format.NDJSON ? ".ndjson" : ".batches");
+        mCurrentFile = new File(mDirectory, name);
+        mChannel = FileChannel.open(mCurrentFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        mFileBytes = 0;
+        mOpenedNanos = System.nanoTime();
+    }
+
+    private void rotate() throws IOException {
+        final File rotated = mCurrentFile;
+        closeFile();
+        if (rotated == null) {
+            return;
+        }
+        if (mCompressRotated) {
+            mCompressor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    compress(rotated);
+                }
+            });
+        } else {
+            rotated(rotated);
+        }
+    }
+
+    private synchronized void rotated(File file) {
+        mRotated.addLast(file);
+        if (mRotated.size() > MAX_ROTATED_FILES) {
+            mRotated.removeFirst();
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (mChannel != null) {
+            try {
+                mChannel.force(true);
+            } finally {
+                mChannel.close();
+                mChannel = null;
+            }
+        }
+    }
+
+    private void compress(File file) {
+        File compressed = new File(file.getPath() + ".gz");
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), 64 * 1024);
+                try {
+                    byte[] chunk = new byte[64 * 1024];
+                    int read;
+                    while ((read = in.read(chunk)) != -1) {
+                        out.write(chunk, 0, read);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+            file.delete();
+            rotated(compressed);
+        } catch (IOException e) {
+            // Leave the uncompressed file for the log pipeline.
+            compressed.delete();
+            rotated(file);
+        }
+    }
+
+    private final File mDirectory;
+    private final String mPrefix;
+    private final Format mFormat;
+    private final SimpleDateFormat mFileNameFormat = new SimpleDateFormat("yyyyMMdd-HHmmss");
+    private final ExecutorService mCompressor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("connecto-file-sink-gzip"));
+
+    // Guarded by this
+    private long mMaxFileBytes = DEFAULT_MAX_FILE_BYTES;
+    private long mRotationNanos = 0;
+    private boolean mCompressRotated = false;
+    private boolean mSync = true;
+    private PooledBuffer mPending = new PooledBuffer();
+    private long mPendingRound = 1;
+    private long mSyncedRound = 0;
+    private Thread mWriter = null;
+    private FileChannel mChannel = null;
+    private File mCurrentFile = null;
+    private long mFileBytes = 0;
+    private long mOpenedNanos = 0;
+    private int mFileSequence = 0;
+    private final Deque<File> mRotated = new ArrayDeque<File>();
+    private IOException mFailure = null;
+    private boolean mClosed = false;
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 128L * 1024 * 1024;
+
+    /**
+     * How many rotated files #{@link #getRotatedFiles()} remembers.
+     */
+    public static final int MAX_ROTATED_FILES = 1000;
+    private static final int MAX_PENDING_BYTES = 8 * 1024 * 1024;
+    private static final long ROTATION_CHECK_MILLIS = 1000;
+}
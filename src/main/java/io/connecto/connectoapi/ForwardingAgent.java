@@ -0,0 +1,352 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A long-lived process that queues messages for short-lived processes on the same host,
+ * so batch jobs and command line tools share one client's batching and connections instead of
+ * paying for their own.
+ *
+ * Clients hand batches over with #{@link ConnectoAPI#setForwardingAgent(InetSocketAddress, String)}. The agent
+ * listens on the loopback interface only, where any local user or process can connect, so every
+ * connection must first present the agent's token: a 4 byte big-endian length followed by the token
+ * as UTF-8, answered with a 4 byte 1 if it matches. A connection with the wrong token is closed.
+ * Each batch is framed as a 4 byte big-endian length followed
+ * by its messages as NDJSON, and is answered with a 4 byte big-endian count of the messages queued
+ * by the agent's client, counted from the start of the batch. A batch with any malformed or invalid
+ * message is refused whole and answered with 0. Otherwise messages are queued in order until the
+ * agent's client refuses one, so a client resends only the messages after the count.
+ *
+ * Run the agent with its token in the CONNECTO_AGENT_TOKEN environment variable
+ * <pre>
+ * {@code
+ *     CONNECTO_AGENT_TOKEN=... java -cp connecto-java.jar io.connecto.connectoapi.ForwardingAgent 4318
+ * }
+ * </pre>
+ */
+public class ForwardingAgent implements AutoCloseable {
+
+    /**
+     * @param api the client that batches and sends forwarded messages, closed with the agent
+     * @param port the loopback port to listen on, or 0 for any free port
+     * @param token the secret clients must present, shared with them out of band
+     */
+    public ForwardingAgent(ConnectoAPI api, int port, String token) throws IOException {
+        if (token == null || token.isEmpty()) {
+            throw new IllegalArgumentException("The agent needs a token");
+        }
+        mApi = api;
+        mToken = token.getBytes(StandardCharsets.UTF_8);
+        mServer = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Starts accepting connections in the background. Calling start again has no further effect.
+     *
+     * @return the thread accepting connections, which ends once the agent is closed
+     */
+    public synchronized Thread start() {
+        if (mAcceptor != null) {
+            return mAcceptor;
+        }
+        mAcceptor = new DaemonThreadFactory("connecto-agent").newThread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+        mAcceptor.start();
+        return mAcceptor;
+    }
+
+    /**
+     * @return the address clients should forward to
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress(mServer.getInetAddress(), mServer.getLocalPort());
+    }
+
+    /**
+     * @return messages queued on behalf of clients
+     */
+    public synchronized long getForwardedMessages() {
+        return mForwardedMessages;
+    }
+
+    /**
+     * Stops accepting batches, disconnects clients and closes the agent's client, sending what it has queued.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            for (Socket connection : mConnections) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    // closing anyway
+                }
+            }
+        }
+        mServer.close();
+        mApi.close();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket connection = mServer.accept();
+                synchronized (this) {
+                    if (mClosed) {
+                        connection.close();
+                        return;
+                    }
+                    mConnections.add(connection);
+                }
+                new DaemonThreadFactory("connecto-agent-connection").newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(connection);
+                    }
+                }).start();
+            }
+        } catch (IOException e) {
+            // Closed, or no longer able to accept connections.
+        }
+    }
+
+    private void serve(Socket connection) {
+        try {
+            connection.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            if (! authenticate(connection, in, out)) {
+                return;
+            }
+            byte[] frame = new byte[64 * 1024];
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                if (length < 0 || length > MAX_FRAME_BYTES) {
+                    return;
+                }
+                if (frame.length < length) {
+                    frame = new byte[Math.max(length, frame.length * 2)];
+                }
+                in.readFully(frame, 0, length);
+                out.writeInt(queue(frame, length));
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // Disconnected
+        } catch (IOException e) {
+            // Disconnected
+        } finally {
+            synchronized (this) {
+                mConnections.remove(connection);
+            }
+            try {
+                connection.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private boolean authenticate(Socket connection, DataInputStream in, DataOutputStream out) throws IOException {
+        // Connections that never present a token don't hold a thread for long.
+        connection.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+        int length = in.readInt();
+        if (length < 0 || length > MAX_TOKEN_BYTES) {
+            return false;
+        }
+        byte[] token = new byte[length];
+        in.readFully(token);
+        // Compared in constant time, so the token can't be guessed a byte at a time.
+        if (! MessageDigest.isEqual(token, mToken)) {
+            return false;
+        }
+        connection.setSoTimeout(0);
+        out.writeInt(1);
+        out.flush();
+        return true;
+    }
+
+    /**
+     * @return the number of messages queued, from the start of the frame
+     */
+    private int queue(byte[] frame, int length) {
+        // Everything is parsed and checked before anything is queued, so a refused frame queues nothing.
+        List<JSONObject> messages = new ArrayList<JSONObject>();
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || frame[i] == '\n') {
+                if (i > start) {
+                    try {
+                        JSONObject message = new JSONObject(new String(frame, start, i - start, StandardCharsets.UTF_8));
+                        if (! VALIDATOR.isValidMessage(message)) {
+                            return 0;
+                        }
+                        messages.add(message);
+                    } catch (JSONException e) {
+                        return 0;
+                    }
+                }
+                start = i + 1;
+            }
+        }
+
+        int queued = 0;
+        try {
+            for (JSONObject message : messages) {
+                if (! mApi.enqueue(message)) {
+                    break;
+                }
+                queued++;
+            }
+        } catch (IllegalStateException e) {
+            // The agent is closing.
+        }
+        synchronized (this) {
+            mForwardedMessages += queued;
+        }
+        return queued;
+    }
+
+    /**
+     * Runs an agent until the process is stopped.
+     *
+     * @param args the loopback port to listen on, optionally followed by the events endpoint.
+     *           The token is read from the CONNECTO_AGENT_TOKEN environment variable.
+     */
+    public static void main(String[] args) throws Exception {
+        String token = System.getenv("CONNECTO_AGENT_TOKEN");
+        if (args.length < 1 || token == null || token.isEmpty()) {
+            System.err.println("Usage: CONNECTO_AGENT_TOKEN=<token> ForwardingAgent <port> [events endpoint]");
+            System.exit(2);
+        }
+        ConnectoAPI api = new ConnectoAPI();
+        if (args.length > 1) {
+            api.setEventsEndpoints(Collections.singletonList(args[1]), EndpointRouting.ROUND_ROBIN);
+        }
+        final ForwardingAgent agent = new ForwardingAgent(api, Integer.parseInt(args[0]), token);
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    agent.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Closing the forwarding agent at shutdown: " + e.getMessage(), e);
+                }
+            }
+        }, "connecto-agent-shutdown"));
+        Thread acceptor = agent.start();
+        System.err.println("Forwarding Connecto messages from " + agent.getAddress());
+        acceptor.join();
+    }
+
+    /**
+     * A client's connection to an agent, opened when first used and again after a failure.
+     */
+    /* package */
+    static class Connection {
+        Connection(InetSocketAddress address, String token) {
+            mAddress = address;
+            mToken = token.getBytes(StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Hands a batch of NDJSON messages to the agent.
+         *
+         * @return the number of messages the agent queued, from the start of the batch
+         */
+        synchronized int forward(byte[] ndjson, int length, int connectTimeout, int readTimeout) throws IOException {
+            try {
+                if (mSocket == null) {
+                    mSocket = new Socket();
+                    mSocket.setTcpNoDelay(true);
+                    mSocket.connect(mAddress, connectTimeout);
+                    mOut = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream(), 64 * 1024));
+                    mIn = new DataInputStream(mSocket.getInputStream());
+                    mSocket.setSoTimeout(readTimeout);
+                    mOut.writeInt(mToken.length);
+                    mOut.write(mToken);
+                    mOut.flush();
+                    if (mIn.readInt() != 1) {
+                        throw new IOException("Forwarding agent refused the token");
+                    }
+                }
+                mSocket.setSoTimeout(readTimeout);
+                mOut.writeInt(length);
+                mOut.write(ndjson, 0, length);
+                mOut.flush();
+                return mIn.readInt();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        synchronized void close() {
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                mSocket = null;
+            }
+        }
+
+        private final InetSocketAddress mAddress;
+        private final byte[] mToken;
+        private Socket mSocket = null;
+        private DataOutputStream mOut = null;
+        private DataInputStream mIn = null;
+    }
+
+    private final ConnectoAPI mApi;
+    private final byte[] mToken;
+    private final ServerSocket mServer;
+
+    // Guarded by this
+    private Thread mAcceptor = null;
+    private final Set<Socket> mConnections = Collections.newSetFromMap(new IdentityHashMap<Socket, Boolean>());
+    private long mForwardedMessages = 0;
+    private boolean mClosed = false;
+
+    private static final Logger LOGGER = Logger.getLogger(ForwardingAgent.class.getName());
+    private static final ClientDelivery VALIDATOR = new ClientDelivery();
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_TOKEN_BYTES = 4096;
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+}
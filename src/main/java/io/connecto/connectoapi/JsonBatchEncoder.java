@@ -0,0 +1,35 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Encodes batches as a JSON array of messages. This is the default format.
+ */
+public class JsonBatchEncoder implements BatchEncoder {
+
+    @Override
+    public String getContentType() {
+        return "application/json";
+    }
+
+    @Override
+    public void encode(List<JSONObject> messages, OutputStream out) throws IOException {
+        out.write(toJson(messages).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* package */
+    static String toJson(List<JSONObject> messages) {
+        JSONArray array = new JSONArray();
+        for (JSONObject message:messages) {
+            array.put(message);
+        }
+
+        return array.toString();
+    }
+}
@@ -0,0 +1,37 @@
+package io.connecto.connectoapi;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent request latencies, so delays can be chosen from their percentiles.
+ */
+/* package */
+class LatencySampler {
+    LatencySampler(int capacity) {
+        mSamples = new long[capacity];
+    }
+
+    synchronized void record(long latencyMillis) {
+        mSamples[mNext] = latencyMillis;
+        mNext = (mNext + 1) % mSamples.length;
+        mCount = Math.min(mCount + 1, mSamples.length);
+    }
+
+    /**
+     * @param percentile between 0 and 1
+     * @return the latency at the given percentile of the recorded samples, or -1 if fewer than minSamples were recorded
+     */
+    synchronized long percentile(double percentile, int minSamples) {
+        if (mCount < minSamples || mCount == 0) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * mCount) - 1;
+        return sorted[Math.max(0, Math.min(index, mCount - 1))];
+    }
+
+    private final long[] mSamples;
+    private int mNext = 0;
+    private int mCount = 0;
+}
@@ -0,0 +1,43 @@
+package io.connecto.connectoapi;
+
+/**
+ * Summarizes the latencies recorded for one #{@link LifecycleStage}. Percentiles are
+ * accurate to within a factor of two.
+ */
+public class LatencySnapshot {
+
+    /* package */
+    LatencySnapshot(long count, long meanMicros, long p50Micros, long p90Micros, long p99Micros, long maxMicros) {
+        mCount = count;
+        mMeanMicros = meanMicros;
+        mP50Micros = p50Micros;
+        mP90Micros = p90Micros;
+        mP99Micros = p99Micros;
+        mMaxMicros = maxMicros;
+    }
+
+    public long getCount() { return mCount; }
+
+    public long getMeanMicros() { return mMeanMicros; }
+
+    public long getP50Micros() { return mP50Micros; }
+
+    public long getP90Micros() { return mP90Micros; }
+
+    public long getP99Micros() { return mP99Micros; }
+
+    public long getMaxMicros() { return mMaxMicros; }
+
+    @Override
+    public String toString() {
+        return "LatencySnapshot(count=" + mCount + ", mean=" + mMeanMicros + "us, p50=" + mP50Micros
+                + "us, p90=" + mP90Micros + "us, p99=" + mP99Micros + "us, max=" + mMaxMicros + "us)";
+    }
+
+    private final long mCount;
+    private final long mMeanMicros;
+    private final long mP50Micros;
+    private final long mP90Micros;
+    private final long mP99Micros;
+    private final long mMaxMicros;
+}
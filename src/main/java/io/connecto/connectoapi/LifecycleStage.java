@@ -0,0 +1,34 @@
+package io.connecto.connectoapi;
+
+/**
+ * The steps a queued message passes through on its way to Connecto, as measured by lifecycle tracing.
+ *
+ * @see ConnectoAPI#setLifecycleTracing(boolean, double)
+ */
+public enum LifecycleStage {
+    /**
+     * From #{@link MessageBuilder} creating the message to it being queued. Only measured for
+     * messages from a MessageBuilder with tracing enabled.
+     */
+    BUILT_TO_ENQUEUED,
+
+    /**
+     * From being queued to its batch being closed, by filling up or lingering.
+     */
+    ENQUEUED_TO_BATCHED,
+
+    /**
+     * From the batch being closed to its request starting, waiting for a free request slot.
+     */
+    BATCHED_TO_SENT,
+
+    /**
+     * From the request starting to the server acknowledging it.
+     */
+    SENT_TO_ACKNOWLEDGED,
+
+    /**
+     * From being queued to being acknowledged.
+     */
+    ENQUEUED_TO_ACKNOWLEDGED
+}
@@ -0,0 +1,42 @@
+package io.connecto.connectoapi;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latency histograms for each step of delivering queued messages, with a few sampled
+ * message traces as examples.
+ *
+ * @see ConnectoAPI#getLifecycleStats()
+ */
+public class LifecycleStats {
+
+    /* package */
+    LifecycleStats(Map<LifecycleStage, LatencySnapshot> latencies, List<MessageTrace> exemplars) {
+        mLatencies = Collections.unmodifiableMap(latencies);
+        mExemplars = Collections.unmodifiableList(exemplars);
+    }
+
+    /**
+     * @return the latencies recorded for the given stage since tracing started
+     */
+    public LatencySnapshot getLatency(LifecycleStage stage) {
+        return mLatencies.get(stage);
+    }
+
+    /**
+     * @return the most recently sampled message traces, oldest first
+     */
+    public List<MessageTrace> getExemplars() {
+        return mExemplars;
+    }
+
+    @Override
+    public String toString() {
+        return "LifecycleStats(" + mLatencies + ", exemplars=" + mExemplars.size() + ")";
+    }
+
+    private final Map<LifecycleStage, LatencySnapshot> mLatencies;
+    private final List<MessageTrace> mExemplars;
+}
@@ -0,0 +1,105 @@
+package io.connecto.connectoapi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long queued messages spend in each #{@link LifecycleStage}, and keeps a
+ * sample of complete message traces.
+ */
+/* package */
+class LifecycleTracer {
+
+    LifecycleTracer(double exemplarSampleRate) {
+        mExemplarSampleRate = exemplarSampleRate;
+        for (LifecycleStage stage : LifecycleStage.values()) {
+            mHistograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    double getExemplarSampleRate() {
+        return mExemplarSampleRate;
+    }
+
+    void setExemplarSampleRate(double exemplarSampleRate) {
+        mExemplarSampleRate = exemplarSampleRate;
+    }
+
+    void enqueued(QueuedMessage queued, long builtNanos, long nowNanos) {
+        queued.mEnqueuedNanos = nowNanos;
+        queued.mBuiltNanos = builtNanos;
+        if (builtNanos != 0) {
+            mHistograms.get(LifecycleStage.BUILT_TO_ENQUEUED).record(nowNanos - builtNanos);
+        }
+        if (mExemplarSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < mExemplarSampleRate) {
+            queued.mTraceId = queued.getMessageId();
+        }
+    }
+
+    void batched(List<QueuedMessage> batch, long batchedNanos) {
+        LatencyHistogram histogram = mHistograms.get(LifecycleStage.ENQUEUED_TO_BATCHED);
+        for (QueuedMessage queued : batch) {
+            histogram.record(batchedNanos - queued.mEnqueuedNanos);
+        }
+    }
+
+    void sent(long batchedNanos, long sentNanos) {
+        mHistograms.get(LifecycleStage.BATCHED_TO_SENT).record(sentNanos - batchedNanos);
+    }
+
+    void acknowledged(List<QueuedMessage> batch, long batchedNanos, long sentNanos, long acknowledgedNanos,
+                      boolean accepted) {
+        if (accepted) {
+            mHistograms.get(LifecycleStage.SENT_TO_ACKNOWLEDGED).record(acknowledgedNanos - sentNanos);
+            LatencyHistogram endToEnd = mHistograms.get(LifecycleStage.ENQUEUED_TO_ACKNOWLEDGED);
+            for (QueuedMessage queued : batch) {
+                endToEnd.record(acknowledgedNanos - queued.mEnqueuedNanos);
+            }
+        }
+
+        for (QueuedMessage queued : batch) {
+            if (queued.mTraceId != null) {
+                long enqueued = queued.mEnqueuedNanos;
+                MessageTrace trace = new MessageTrace(queued.mTraceId,
+                        queued.mBuiltNanos == 0 ? Long.MIN_VALUE : micros(queued.mBuiltNanos - enqueued),
+                        micros(batchedNanos - enqueued), micros(sentNanos - enqueued),
+                        micros(acknowledgedNanos - enqueued), accepted);
+                synchronized (mExemplars) {
+                    if (mExemplars.size() == MAX_EXEMPLARS) {
+                        mExemplars.removeFirst();
+                    }
+                    mExemplars.addLast(trace);
+                }
+            }
+        }
+    }
+
+    LifecycleStats snapshot() {
+        Map<LifecycleStage, LatencySnapshot> latencies = new EnumMap<LifecycleStage, LatencySnapshot>(LifecycleStage.class);
+        for (Map.Entry<LifecycleStage, LatencyHistogram> entry : mHistograms.entrySet()) {
+            latencies.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        List<MessageTrace> exemplars;
+        synchronized (mExemplars) {
+            exemplars = new ArrayList<MessageTrace>(mExemplars);
+        }
+        return new LifecycleStats(latencies, exemplars);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private volatile double mExemplarSampleRate;
+    private final Map<LifecycleStage, LatencyHistogram> mHistograms =
+            new EnumMap<LifecycleStage, LatencyHistogram>(LifecycleStage.class);
+    private final Deque<MessageTrace> mExemplars = new ArrayDeque<MessageTrace>();
+
+    private static final int MAX_EXEMPLARS = 32;
+}
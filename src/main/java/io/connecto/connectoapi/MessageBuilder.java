@@ -23,20 +23,49 @@ public class MessageBuilder {
         mWriteKey = writeKey;
     }
 
+    /**
+     * When enabled, messages record when they were built so lifecycle tracing in
+     * #{@link ConnectoAPI} can measure how long they waited before being queued.
+     * The time is held by the returned object rather than in its payload, so the message's
+     * contents are the same either way.
+     *
+     * @see ConnectoAPI#setLifecycleTracing(boolean, double)
+     */
+    public void setLifecycleTracing(boolean enabled) {
+        mLifecycleTracing = enabled;
+    }
+
+    /**
+     * Returns this thread's #{@link EventWriter} for this builder, which writes the same messages
+     * as #{@link #event(String, String, String, JSONObject)} and #{@link #identify(String, String, Object)}
+     * directly into a reusable buffer. The writer must not be shared with other threads.
+     */
+    public EventWriter writer() {
+        EventWriter writer = mWriters.get();
+        if (writer == null || writer.isLifecycleTracing() != mLifecycleTracing) {
+            writer = new EventWriter(mWriteKey, mLifecycleTracing);
+            mWriters.set(writer);
+        }
+        return writer;
+    }
+
     public String guid() {
         return String.valueOf(UUID.randomUUID());
     };
 
     public String returnISODate() {
+        return returnISODate(new Date());
+    }
+
+    public String returnISODate(Date date) {
         TimeZone tz = TimeZone.getTimeZone("UTC");
         DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm'Z'");
         df.setTimeZone(tz);
-        String nowAsISO = df.format(new Date());
-        return nowAsISO;
+        return df.format(date);
     }
 
     public JSONObject getDefaultPayload(String eventType) {
-        JSONObject payload = new JSONObject();
+        JSONObject payload = mLifecycleTracing ? new TracedPayload(System.nanoTime()) : new JSONObject();
         String messageId = guid();
         long time = System.currentTimeMillis() / 1000;
         try {
@@ -92,6 +121,23 @@ public class MessageBuilder {
         }
     }
 
+    /**
+     * Formats an event that happened at the given time rather than now, for example to
+     * write historical events for a #{@link Backfill}.
+     *
+     * @param sentAt when the event happened
+     * @see #event(String, String, String, JSONObject)
+     */
+    public JSONObject event(String distinctId, String eventName, String eventType, JSONObject properties, Date sentAt) {
+        JSONObject dataObj = event(distinctId, eventName, eventType, properties);
+        try {
+            dataObj.put("sentAt", returnISODate(sentAt));
+        } catch (JSONException e) {
+            throw new RuntimeException("Can't construct a Connecto message", e);
+        }
+        return dataObj;
+    }
+
     /**
      * Sets User property on the profile associated with the given distinctId or userID.
      * When sent, this message will overwrite any existing values for the given traits.
@@ -157,7 +203,28 @@ public class MessageBuilder {
         }
     }
 
+    /**
+     * @return when the message was built, or 0 if it was not built with lifecycle tracing enabled
+     */
+    /* package */
+    static long getBuiltNanos(JSONObject message) {
+        return message instanceof TracedPayload ? ((TracedPayload) message).mBuiltNanos : 0;
+    }
+
+    /**
+     * A payload that remembers when it was built, without adding anything to what is sent.
+     */
+    private static final class TracedPayload extends JSONObject {
+        TracedPayload(long builtNanos) {
+            mBuiltNanos = builtNanos;
+        }
+
+        final long mBuiltNanos;
+    }
+
     private final String mWriteKey;
+    private volatile boolean mLifecycleTracing = false;
+    private final ThreadLocal<EventWriter> mWriters = new ThreadLocal<EventWriter>();
 
     private static final String ENGAGE_DATE_FORMAT = "yyyy-MM-dd'T'HH:mm:ss";
 }
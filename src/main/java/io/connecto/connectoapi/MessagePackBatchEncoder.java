@@ -0,0 +1,173 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Encodes batches in MessagePack, an array of maps mirroring the JSON format.
+ *
+ * Numbers are written in binary rather than as text, which makes batches smaller
+ * and cheaper to produce. The import endpoint must accept application/msgpack.
+ *
+ * @see <a href="https://github.com/msgpack/msgpack/blob/master/spec.md">MessagePack specification</a>
+ */
+public class MessagePackBatchEncoder implements BatchEncoder {
+
+    @Override
+    public String getContentType() {
+        return "application/msgpack";
+    }
+
+    @Override
+    public void encode(List<JSONObject> messages, OutputStream out) throws IOException {
+        writeArrayHeader(messages.size(), out);
+        for (JSONObject message : messages) {
+            writeValue(message, out);
+        }
+    }
+
+    private void writeValue(Object value, OutputStream out) throws IOException {
+        try {
+            if (value == null || value == JSONObject.NULL) {
+                out.write(0xc0);
+            } else if (value instanceof String) {
+                writeString((String) value, out);
+            } else if (value instanceof Boolean) {
+                out.write(((Boolean) value) ? 0xc3 : 0xc2);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+                writeLong(((Number) value).longValue(), out);
+            } else if (value instanceof Number) {
+                out.write(0xcb);
+                writeRaw(Double.doubleToLongBits(((Number) value).doubleValue()), 8, out);
+            } else if (value instanceof JSONObject) {
+                JSONObject object = (JSONObject) value;
+                writeMapHeader(object.length(), out);
+                Iterator<?> keys = object.keys();
+                while (keys.hasNext()) {
+                    String key = (String) keys.next();
+                    writeString(key, out);
+                    writeValue(object.get(key), out);
+                }
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                writeArrayHeader(array.length(), out);
+                for (int i = 0; i < array.length(); i++) {
+                    writeValue(array.get(i), out);
+                }
+            } else {
+                // Matches JSONObject, which writes unknown values with toString()
+                writeString(value.toString(), out);
+            }
+        } catch (JSONException e) {
+            throw new RuntimeException("Apparently valid Connecto message could not be interpreted.", e);
+        }
+    }
+
+    private void writeLong(long v, OutputStream out) throws IOException {
+        if (v >= 0 && v < 128) {
+            out.write((int) v);
+        } else if (v < 0 && v >= -32) {
+            out.write((int) v & 0xff);
+        } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+            out.write(0xd2);
+            writeRaw(v, 4, out);
+        } else {
+            out.write(0xd3);
+            writeRaw(v, 8, out);
+        }
+    }
+
+    private void writeString(String s, OutputStream out) throws IOException {
+        int length = utf8Length(s);
+        if (length < 32) {
+            out.write(0xa0 | length);
+        } else if (length < 256) {
+            out.write(0xd9);
+            out.write(length);
+        } else if (length < 65536) {
+            out.write(0xda);
+            writeRaw(length, 2, out);
+        } else {
+            out.write(0xdb);
+            writeRaw(length, 4, out);
+        }
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.write(c);
+            } else if (c < 0x800) {
+                out.write(0xc0 | (c >> 6));
+                out.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.write(0xf0 | (cp >> 18));
+                out.write(0x80 | ((cp >> 12) & 0x3f));
+                out.write(0x80 | ((cp >> 6) & 0x3f));
+                out.write(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                out.write('?');
+            } else {
+                out.write(0xe0 | (c >> 12));
+                out.write(0x80 | ((c >> 6) & 0x3f));
+                out.write(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length += 1;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeArrayHeader(int size, OutputStream out) throws IOException {
+        if (size < 16) {
+            out.write(0x90 | size);
+        } else if (size < 65536) {
+            out.write(0xdc);
+            writeRaw(size, 2, out);
+        } else {
+            out.write(0xdd);
+            writeRaw(size, 4, out);
+        }
+    }
+
+    private static void writeMapHeader(int size, OutputStream out) throws IOException {
+        if (size < 16) {
+            out.write(0x80 | size);
+        } else if (size < 65536) {
+            out.write(0xde);
+            writeRaw(size, 2, out);
+        } else {
+            out.write(0xdf);
+            writeRaw(size, 4, out);
+        }
+    }
+
+    private static void writeRaw(long v, int bytes, OutputStream out) throws IOException {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (v >>> shift) & 0xff);
+        }
+    }
+}
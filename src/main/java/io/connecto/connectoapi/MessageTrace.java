@@ -0,0 +1,53 @@
+package io.connecto.connectoapi;
+
+/**
+ * The lifecycle of one sampled message. Times are in microseconds since the message was
+ * queued, and are negative for steps that were not observed.
+ *
+ * @see LifecycleStats#getExemplars()
+ */
+public class MessageTrace {
+
+    /* package */
+    MessageTrace(String messageId, long builtMicros, long batchedMicros, long sentMicros,
+                 long acknowledgedMicros, boolean accepted) {
+        mMessageId = messageId;
+        mBuiltMicros = builtMicros;
+        mBatchedMicros = batchedMicros;
+        mSentMicros = sentMicros;
+        mAcknowledgedMicros = acknowledgedMicros;
+        mAccepted = accepted;
+    }
+
+    public String getMessageId() { return mMessageId; }
+
+    /**
+     * @return when the message was built, zero or less since it is built before being queued,
+     *      or Long.MIN_VALUE if unknown
+     */
+    public long getBuiltMicros() { return mBuiltMicros; }
+
+    public long getBatchedMicros() { return mBatchedMicros; }
+
+    public long getSentMicros() { return mSentMicros; }
+
+    public long getAcknowledgedMicros() { return mAcknowledgedMicros; }
+
+    /**
+     * @return true if the server accepted the message's batch
+     */
+    public boolean isAccepted() { return mAccepted; }
+
+    @Override
+    public String toString() {
+        return "MessageTrace(" + mMessageId + ", built=" + mBuiltMicros + "us, batched=" + mBatchedMicros
+                + "us, sent=" + mSentMicros + "us, acknowledged=" + mAcknowledgedMicros + "us, accepted=" + mAccepted + ")";
+    }
+
+    private final String mMessageId;
+    private final long mBuiltMicros;
+    private final long mBatchedMicros;
+    private final long mSentMicros;
+    private final long mAcknowledgedMicros;
+    private final boolean mAccepted;
+}
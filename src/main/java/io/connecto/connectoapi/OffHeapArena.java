@@ -0,0 +1,153 @@
+package io.connecto.connectoapi;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pre-allocated direct memory for encoded queued messages, so messages waiting to be sent
+ * are not part of the Java heap.
+ *
+ * Memory is carved from fixed-size slabs into power-of-two blocks, and freed blocks are kept
+ * on a free list per size and reused. Messages larger than the largest block are not stored.
+ *
+ * Not thread safe, DeliveryQueue guards it with its own lock. Block contents may be read
+ * from other threads once the block has been handed over.
+ */
+/* package */
+class OffHeapArena {
+
+    OffHeapArena(long capacityBytes) {
+        int slabCount = (int) Math.max(1, (capacityBytes + SLAB_SIZE - 1) / SLAB_SIZE);
+        mSlabs = new ByteBuffer[slabCount];
+        for (int i = 0; i < slabCount; i++) {
+            mSlabs[i] = ByteBuffer.allocateDirect(SLAB_SIZE);
+        }
+        mFreeLists = new long[SIZE_CLASSES][];
+        mFreeCounts = new int[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            mFreeLists[i] = new long[16];
+        }
+    }
+
+    /**
+     * Copies the given bytes into the arena.
+     *
+     * @return the block holding the bytes, or null if the arena is full or the bytes are too large
+     */
+    Block store(byte[] data) {
+        int sizeClass = sizeClass(data.length);
+        if (sizeClass < 0) {
+            return null;
+        }
+
+        long address;
+        if (mFreeCounts[sizeClass] > 0) {
+            address = mFreeLists[sizeClass][--mFreeCounts[sizeClass]];
+        } else {
+            address = carve(MIN_BLOCK_SIZE << sizeClass);
+            if (address < 0) {
+                return null;
+            }
+        }
+
+        ByteBuffer slab = mSlabs[slabOf(address)].duplicate();
+        slab.position(offsetOf(address));
+        slab.put(data);
+        mUsedBytes += MIN_BLOCK_SIZE << sizeClass;
+        return new Block(address, data.length, sizeClass);
+    }
+
+    /**
+     * Returns a block to the arena. The block must not be read afterwards.
+     */
+    void free(Block block) {
+        int sizeClass = block.mSizeClass;
+        long[] freeList = mFreeLists[sizeClass];
+        if (mFreeCounts[sizeClass] == freeList.length) {
+            freeList = Arrays.copyOf(freeList, freeList.length * 2);
+            mFreeLists[sizeClass] = freeList;
+        }
+        freeList[mFreeCounts[sizeClass]++] = block.mAddress;
+        mUsedBytes -= MIN_BLOCK_SIZE << sizeClass;
+    }
+
+    /**
+     * @return a read-only view of the block's bytes
+     */
+    ByteBuffer read(Block block) {
+        ByteBuffer view = mSlabs[slabOf(block.mAddress)].asReadOnlyBuffer();
+        int offset = offsetOf(block.mAddress);
+        view.limit(offset + block.mLength);
+        view.position(offset);
+        return view;
+    }
+
+    long getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    long getCapacityBytes() {
+        return (long) mSlabs.length * SLAB_SIZE;
+    }
+
+    private long carve(int blockSize) {
+        while (mCarveSlab < mSlabs.length) {
+            if (SLAB_SIZE - mCarveOffset >= blockSize) {
+                long address = ((long) mCarveSlab << 32) | mCarveOffset;
+                mCarveOffset += blockSize;
+                return address;
+            }
+            mCarveSlab++;
+            mCarveOffset = 0;
+        }
+        return -1;
+    }
+
+    private static int sizeClass(int length) {
+        int sizeClass = 0;
+        int blockSize = MIN_BLOCK_SIZE;
+        while (blockSize < length) {
+            blockSize <<= 1;
+            sizeClass++;
+        }
+        return sizeClass < SIZE_CLASSES ? sizeClass : -1;
+    }
+
+    private static int slabOf(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int offsetOf(long address) {
+        return (int) address;
+    }
+
+    /**
+     * A region of the arena holding one encoded message.
+     */
+    static final class Block {
+        Block(long address, int length, int sizeClass) {
+            mAddress = address;
+            mLength = length;
+            mSizeClass = sizeClass;
+        }
+
+        int getLength() {
+            return mLength;
+        }
+
+        private final long mAddress;
+        private final int mLength;
+        private final int mSizeClass;
+    }
+
+    private final ByteBuffer[] mSlabs;
+    private final long[][] mFreeLists;
+    private final int[] mFreeCounts;
+    private int mCarveSlab = 0;
+    private int mCarveOffset = 0;
+    private long mUsedBytes = 0;
+
+    private static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_BLOCK_SIZE = 64;
+    private static final int SIZE_CLASSES = 11; // 64 bytes to 64 KB
+}
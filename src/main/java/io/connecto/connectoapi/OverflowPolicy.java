@@ -0,0 +1,29 @@
+package io.connecto.connectoapi;
+
+/**
+ * What #{@link ConnectoAPI#enqueue(org.json.JSONObject)} does with a message that would take
+ * the delivery queue over its byte budget.
+ *
+ * @see ConnectoAPI#setMaxQueuedBytes(long)
+ */
+public enum OverflowPolicy {
+    /**
+     * Wait for queued messages to be sent, up to the overflow block timeout, then drop the new message.
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest queued messages, from the lowest priority lanes first, to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the new message.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Append the new message to a file in the spill directory, to be queued again once there is room.
+     */
+    SPILL_TO_DISK
+}
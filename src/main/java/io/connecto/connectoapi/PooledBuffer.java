@@ -0,0 +1,85 @@
+package io.connecto.connectoapi;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that is reused by its thread, so encoding a batch does not
+ * allocate a new array each time.
+ */
+/* package */
+class PooledBuffer extends ByteArrayOutputStream {
+
+    /**
+     * Creates a buffer owned by its caller rather than by the thread, see #{@link #forThread()}.
+     */
+    PooledBuffer() {
+        super(INITIAL_SIZE);
+    }
+
+    /**
+     * @return this thread's buffer, emptied
+     */
+    static PooledBuffer forThread() {
+        PooledBuffer buffer = sBuffers.get();
+        if (buffer.buf.length > MAX_RETAINED_SIZE) {
+            // Don't hold on to the memory of one unusually large batch.
+            buffer = new PooledBuffer();
+            sBuffers.set(buffer);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    // Buffers are confined to their thread, so writes skip ByteArrayOutputStream's locking.
+    @Override
+    public void write(int b) {
+        if (count == buf.length) {
+            grow(count + 1);
+        }
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        if (count + len > buf.length) {
+            grow(count + len);
+        }
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Copies the remaining bytes of the given buffer, which may be direct.
+     */
+    void write(ByteBuffer src) {
+        int len = src.remaining();
+        if (count + len > buf.length) {
+            grow(count + len);
+        }
+        src.get(buf, count, len);
+        count += len;
+    }
+
+    /**
+     * @return the backing array, valid up to #{@link #size()}
+     */
+    byte[] array() {
+        return buf;
+    }
+
+    private void grow(int minCapacity) {
+        buf = Arrays.copyOf(buf, Math.max(buf.length * 2, minCapacity));
+    }
+
+    private static final int INITIAL_SIZE = 16 * 1024;
+    static final int MAX_RETAINED_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<PooledBuffer> sBuffers = new ThreadLocal<PooledBuffer>() {
+        @Override
+        protected PooledBuffer initialValue() {
+            return new PooledBuffer();
+        }
+    };
+}
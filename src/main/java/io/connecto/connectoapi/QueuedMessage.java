@@ -0,0 +1,208 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message held by the DeliveryQueue, either as its JSONObject, as an EncodedMessage,
+ * or encoded in an OffHeapArena.
+ */
+/* package */
+abstract class QueuedMessage {
+
+    /**
+     * @return the message, decoded again if it is stored off the heap
+     */
+    abstract JSONObject getMessage();
+
+    /**
+     * @return the size of the message counted against the queue's byte budget
+     */
+    abstract long getBytes();
+
+    /**
+     * Writes the message as JSON text.
+     */
+    abstract void writeJson(PooledBuffer out) throws IOException;
+
+    /**
+     * @return true if #{@link #writeJson(PooledBuffer)} can write the message without re-encoding it
+     */
+    abstract boolean isEncoded();
+
+    /**
+     * @return the message as JSON text
+     */
+    String toJson() {
+        return getMessage().toString();
+    }
+
+    /**
+     * @return the message id, for lifecycle traces
+     */
+    String getMessageId() {
+        return getMessage().optString("messageId");
+    }
+
+    /**
+     * Gives back any memory held outside the heap. Must be called under the queue's lock.
+     */
+    void release() {}
+
+    // Lifecycle timestamps, only set when tracing is enabled.
+    long mBuiltNanos = 0;
+    long mEnqueuedNanos = 0;
+    String mTraceId = null;
+
+    // The routing key for endpoints routed by user.
+    String mUserId = null;
+
+    // Trait hashes to remember once an identify message is acknowledged, see TraitDeltaCache.
+    long[] mTraitHashes = null;
+
+    /**
+     * @param json the message as serialized when its size was counted, sent as it is
+     */
+    static QueuedMessage onHeap(JSONObject message, String json, long bytes) {
+        return new HeapMessage(message, json, bytes);
+    }
+
+    /**
+     * @return the message stored in the arena, or null if the arena has no room for it
+     */
+    static QueuedMessage inArena(OffHeapArena arena, byte[] json, String messageId) {
+        OffHeapArena.Block block = arena.store(json);
+        return block == null ? null : new ArenaMessage(arena, block, messageId);
+    }
+
+    static QueuedMessage encoded(EncodedMessage message) {
+        return new EncodedQueuedMessage(message);
+    }
+
+    private static class HeapMessage extends QueuedMessage {
+        HeapMessage(JSONObject message, String json, long bytes) {
+            mMessage = message;
+            mJson = json;
+            mBytes = bytes;
+        }
+
+        @Override
+        JSONObject getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        long getBytes() {
+            return mBytes;
+        }
+
+        @Override
+        void writeJson(PooledBuffer out) throws IOException {
+            out.write(mJson.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        String toJson() {
+            return mJson;
+        }
+
+        @Override
+        boolean isEncoded() {
+            return false;
+        }
+
+        @Override
+        String getMessageId() {
+            return mMessage.optString("messageId");
+        }
+
+        private final JSONObject mMessage;
+        private final String mJson;
+        private final long mBytes;
+    }
+
+    private static class EncodedQueuedMessage extends QueuedMessage {
+        EncodedQueuedMessage(EncodedMessage message) {
+            mEncoded = message;
+        }
+
+        @Override
+        JSONObject getMessage() {
+            return mEncoded.toJSONObject();
+        }
+
+        @Override
+        long getBytes() {
+            return mEncoded.size();
+        }
+
+        @Override
+        void writeJson(PooledBuffer out) {
+            out.write(mEncoded.bytes(), 0, mEncoded.size());
+        }
+
+        @Override
+        boolean isEncoded() {
+            return true;
+        }
+
+        @Override
+        String getMessageId() {
+            return mEncoded.getMessageId();
+        }
+
+        private final EncodedMessage mEncoded;
+    }
+
+    private static class ArenaMessage extends QueuedMessage {
+        ArenaMessage(OffHeapArena arena, OffHeapArena.Block block, String messageId) {
+            mArena = arena;
+            mBlock = block;
+            mMessageId = messageId;
+        }
+
+        @Override
+        JSONObject getMessage() {
+            ByteBuffer bytes = mArena.read(mBlock);
+            try {
+                return new JSONObject(StandardCharsets.UTF_8.decode(bytes).toString());
+            } catch (JSONException e) {
+                throw new RuntimeException("Queued Connecto message could not be decoded.", e);
+            }
+        }
+
+        @Override
+        long getBytes() {
+            return mBlock.getLength();
+        }
+
+        @Override
+        void writeJson(PooledBuffer out) {
+            out.write(mArena.read(mBlock));
+        }
+
+        @Override
+        boolean isEncoded() {
+            return true;
+        }
+
+        @Override
+        String getMessageId() {
+            // Kept on the heap so reporting a batch doesn't decode it.
+            return mMessageId;
+        }
+
+        @Override
+        void release() {
+            mArena.free(mBlock);
+        }
+
+        private final OffHeapArena mArena;
+        private final OffHeapArena.Block mBlock;
+        private final String mMessageId;
+    }
+}
@@ -0,0 +1,81 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide dictionary of the segment rules seen from Connecto.
+ *
+ * Every rule id is given a small, stable index so a SegmentResponse can record its
+ * membership as a BitSet, and Segments with the same id and title are shared between
+ * responses rather than copied into each one.
+ */
+/* package */
+final class RuleDictionary {
+
+    private RuleDictionary() {}
+
+    /**
+     * Returns the shared Segment for the given payload, creating it if this id and title have not been seen.
+     *
+     * @throws JSONException if the jsonObject does not contain the required properties.
+     */
+    static Segment segment(JSONObject jsonObject) throws JSONException {
+        Segment parsed = new Segment(jsonObject);
+        return segment(parsed.getRuleId(), parsed.getTitle());
+    }
+
+    /**
+     * Returns the shared Segment for the given id and title, creating it if they have not been seen.
+     */
+    static Segment segment(String ruleId, String title) {
+        Slot slot = slot(ruleId);
+        Segment current = slot.mSegment;
+        if (current != null && current.getTitle().equals(title)) {
+            return current;
+        }
+        // ELSE this is a new rule, or its title changed
+
+        Segment canonical = new Segment(slot.mRuleId, title.intern());
+        slot.mSegment = canonical;
+        return canonical;
+    }
+
+    /**
+     * @return the index of the given rule id, or -1 if no response has contained it
+     */
+    static int indexOf(String ruleId) {
+        Slot slot = sSlots.get(ruleId);
+        return slot == null ? -1 : slot.mIndex;
+    }
+
+    private static Slot slot(String ruleId) {
+        Slot slot = sSlots.get(ruleId);
+        if (slot == null) {
+            Slot created = new Slot(ruleId.intern(), sNextIndex.getAndIncrement());
+            slot = sSlots.putIfAbsent(created.mRuleId, created);
+            if (slot == null) {
+                slot = created;
+            }
+        }
+        return slot;
+    }
+
+    private static class Slot {
+        Slot(String ruleId, int index) {
+            mRuleId = ruleId;
+            mIndex = index;
+        }
+
+        final String mRuleId;
+        final int mIndex;
+        volatile Segment mSegment;
+    }
+
+    private static final ConcurrentMap<String, Slot> sSlots = new ConcurrentHashMap<String, Slot>();
+    private static final AtomicInteger sNextIndex = new AtomicInteger();
+}
@@ -3,8 +3,6 @@ package io.connecto.connectoapi;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.IOException;
-
 /**
  * A model class which represents information related to a segment within Connecto.
  */
@@ -21,14 +19,20 @@ public class Segment {
         this.mRuleId = jsonObject.getString(ID_KEY);
     }
 
+    /* package */
+    Segment(String ruleId, String title) {
+        this.mTitle = title;
+        this.mRuleId = ruleId;
+    }
+
     /* package */
     public String getTitle() { return this.mTitle; }
 
     /* package */
     public String getRuleId() { return this.mRuleId; }
 
-    private String mTitle;
-    private String mRuleId;
+    private final String mTitle;
+    private final String mRuleId;
 
     private static final String TITLE_KEY = "title";
     private static final String ID_KEY = "_id";
@@ -0,0 +1,394 @@
+package io.connecto.connectoapi;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the results of #{@link ConnectoAPI#getSegments(String, String)} per user.
+ *
+ * Entries are served for their time to live. An entry that is read within the refresh-ahead
+ * window before it expires is fetched again in the background while the current response keeps
+ * being served, so users who are seen often never wait on the rules endpoint. If the rules
+ * endpoint cannot be reached, expired entries continue to be served until they are older than
+ * the max staleness.
+ *
+ * With #{@link #enableSnapshots(File, Duration)}, the cache is periodically written to disk and
+ * loaded again on startup, so a new process serves cached segments immediately. Loaded entries
+ * keep their original fetch times and are revalidated as they expire, like any other entry.
+ *
+ * Instances are safe for use by multiple threads.
+ *
+ * @see ConnectoAPI#getSegments(String, String)
+ */
+public class SegmentCache implements AutoCloseable {
+
+    /**
+     * Constructs a SegmentCache with the default expiry and refresh settings.
+     *
+     * @param api the ConnectoAPI used to fetch segments
+     * @param readKey an authorization key provided to you in Connecto admin
+     */
+    public SegmentCache(ConnectoAPI api, String readKey) {
+        this(api, readKey, DEFAULT_TTL_MILLIS, DEFAULT_REFRESH_AHEAD_MILLIS, DEFAULT_MAX_STALENESS_MILLIS,
+             DEFAULT_MAX_CONCURRENT_REFRESHES, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param api the ConnectoAPI used to fetch segments
+     * @param readKey an authorization key provided to you in Connecto admin
+     * @param ttlMillis how long a fetched response is served without being fetched again
+     * @param refreshAheadMillis how long before expiry a read will start a background refresh
+     * @param maxStalenessMillis how long after being fetched a response may still be served
+     *           when the rules endpoint cannot be reached
+     * @param maxConcurrentRefreshes the most background refreshes that may run at once
+     * @param maxEntries the most users to keep in the cache
+     */
+    public SegmentCache(ConnectoAPI api, String readKey, long ttlMillis, long refreshAheadMillis,
+                        long maxStalenessMillis, int maxConcurrentRefreshes, int maxEntries) {
+        if (refreshAheadMillis > ttlMillis || maxStalenessMillis < ttlMillis) {
+            throw new IllegalArgumentException("refreshAheadMillis must not exceed ttlMillis, and maxStalenessMillis must not be less than ttlMillis");
+        }
+        mApi = api;
+        mReadKey = readKey;
+        mTtlMillis = ttlMillis;
+        mRefreshAheadMillis = refreshAheadMillis;
+        mMaxStalenessMillis = maxStalenessMillis;
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+        mRefreshPermits = new Semaphore(maxConcurrentRefreshes);
+        mRefreshExecutor = Executors.newFixedThreadPool(maxConcurrentRefreshes, new DaemonThreadFactory("connecto-segment-refresh"));
+    }
+
+    /**
+     * Returns the segments of the given user, from the cache when possible.
+     *
+     * @param userId a user id whose segments are being requested.
+     * @throws IOException if the segments are not cached, or are older than the max staleness,
+     *           and could not be fetched
+     */
+    public SegmentResponse get(String userId) throws IOException {
+        long now = System.currentTimeMillis();
+        Entry entry = lookup(userId);
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return fetch(userId).mResponse;
+        }
+        // ELSE we have something cached
+
+        long age = now - entry.mFetchedAt;
+        long ttlMillis = mTtlMillis;
+        if (age < ttlMillis) {
+            if (age >= ttlMillis - mRefreshAheadMillis) {
+                refreshAsync(userId, entry);
+            }
+            mHits.incrementAndGet();
+            return entry.mResponse;
+        }
+
+        mMisses.incrementAndGet();
+        try {
+            return fetch(userId).mResponse;
+        } catch (IOException e) {
+            if (age < mMaxStalenessMillis) {
+                mStaleHits.incrementAndGet();
+                return entry.mResponse;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the segments of the given user, waiting no longer than the given deadline.
+     *
+     * If the segments must be fetched and the deadline passes first, the cached response is
+     * returned when it is within the max staleness, and #{@link SegmentResponse#EMPTY} otherwise.
+     *
+     * @param userId a user id whose segments are being requested.
+     * @param deadline the longest this call may take
+     * @throws IOException if the segments are not cached, or are older than the max staleness,
+     *           and could not be fetched
+     * @see ConnectoAPI#getSegments(String, String, Duration, SegmentResponse)
+     */
+    public SegmentResponse get(String userId, Duration deadline) throws IOException {
+        long now = System.currentTimeMillis();
+        Entry entry = lookup(userId);
+        long age = Long.MAX_VALUE;
+        if (entry != null) {
+            age = now - entry.mFetchedAt;
+            long ttlMillis = mTtlMillis;
+            if (age < ttlMillis) {
+                if (age >= ttlMillis - mRefreshAheadMillis) {
+                    refreshAsync(userId, entry);
+                }
+                mHits.incrementAndGet();
+                return entry.mResponse;
+            }
+        }
+        mMisses.incrementAndGet();
+
+        boolean usable = entry != null && age < mMaxStalenessMillis;
+        SegmentResponse fallback = usable ? entry.mResponse : SegmentResponse.EMPTY;
+        try {
+            SegmentResponse response = mApi.getSegments(mReadKey, userId, deadline, fallback);
+            if (response != fallback) {
+                store(userId, response);
+            } else if (usable) {
+                mStaleHits.incrementAndGet();
+            }
+            return response;
+        } catch (IOException e) {
+            if (usable) {
+                mStaleHits.incrementAndGet();
+                return entry.mResponse;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes the cached segments of the given user.
+     */
+    public void invalidate(String userId) {
+        synchronized (mEntries) {
+            mEntries.remove(userId);
+        }
+    }
+
+    /**
+     * @return the number of users currently cached
+     */
+    public int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    /**
+     * Changes how long fetched responses are served without being fetched again.
+     * Applies to entries already cached.
+     *
+     * @param ttlMillis at least the refresh-ahead window and at most the max staleness
+     */
+    public void setTtlMillis(long ttlMillis) {
+        if (ttlMillis < mRefreshAheadMillis || ttlMillis > mMaxStalenessMillis) {
+            throw new IllegalArgumentException("ttlMillis must be between " + mRefreshAheadMillis + " and " + mMaxStalenessMillis);
+        }
+        mTtlMillis = ttlMillis;
+    }
+
+    public long getTtlMillis() {
+        return mTtlMillis;
+    }
+
+    /**
+     * @return counts of the reads served by this cache since it was created
+     */
+    public SegmentCacheStats getStats() {
+        return new SegmentCacheStats(size(), mHits.get(), mMisses.get(), mStaleHits.get(),
+                                     mRefreshes.get(), mRefreshFailures.get());
+    }
+
+    /**
+     * Loads the snapshot in the given file, if there is one, then writes a new snapshot to it at
+     * the given interval and when the cache is closed.
+     *
+     * @param file where snapshots are kept, for example in the service's local data directory
+     * @param interval the time between snapshots
+     * @return the number of entries loaded
+     * @throws IOException if an existing snapshot could not be read
+     */
+    public synchronized int enableSnapshots(final File file, Duration interval) throws IOException {
+        if (mSnapshotWriter != null) {
+            throw new IllegalStateException("Snapshots are already enabled");
+        }
+        int loaded = loadSnapshot(file);
+
+        mSnapshotFile = file;
+        mSnapshotWriter = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("connecto-segment-snapshot"));
+        mSnapshotWriter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                // Anything thrown here would cancel every later snapshot.
+                try {
+                    writeSnapshot(file);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not write segment snapshot to " + file + ", retrying at the next interval", e);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Could not write segment snapshot to " + file + ", retrying at the next interval", e);
+                }
+            }
+        }, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return loaded;
+    }
+
+    /**
+     * Adds the entries of a snapshot written by #{@link #writeSnapshot(File)}. Entries older than the
+     * max staleness, and users already cached, are skipped. A missing or damaged file loads nothing.
+     *
+     * @return the number of entries loaded
+     * @throws IOException if the file could not be read
+     */
+    public int loadSnapshot(File file) throws IOException {
+        long now = System.currentTimeMillis();
+        int loaded = 0;
+        for (SegmentSnapshot.Record record : SegmentSnapshot.read(file)) {
+            if (now - record.mFetchedAt < mMaxStalenessMillis) {
+                synchronized (mEntries) {
+                    // Loaded entries never push out users already cached.
+                    if (mEntries.size() < mMaxEntries && ! mEntries.containsKey(record.mUserId)) {
+                        mEntries.put(record.mUserId, new Entry(record.mResponse, record.mFetchedAt));
+                        loaded++;
+                    }
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Writes the current entries to the given file, replacing it atomically.
+     */
+    public void writeSnapshot(File file) throws IOException {
+        List<SegmentSnapshot.Record> records;
+        synchronized (mEntries) {
+            records = new ArrayList<SegmentSnapshot.Record>(mEntries.size());
+            for (Map.Entry<String, Entry> cached : mEntries.entrySet()) {
+                Entry entry = cached.getValue();
+                records.add(new SegmentSnapshot.Record(cached.getKey(), entry.mResponse, entry.mFetchedAt));
+            }
+        }
+        SegmentSnapshot.write(file, records);
+    }
+
+    /**
+     * Stops background refreshes, and writes a final snapshot if snapshots are enabled.
+     * Cached entries can still be read after close.
+     */
+    @Override
+    public void close() {
+        mRefreshExecutor.shutdownNow();
+        synchronized (this) {
+            if (mSnapshotWriter != null) {
+                mSnapshotWriter.shutdownNow();
+                mSnapshotWriter = null;
+                try {
+                    writeSnapshot(mSnapshotFile);
+                } catch (IOException e) {
+                    // the last periodic snapshot remains
+                }
+            }
+        }
+    }
+
+    private Entry fetch(String userId) throws IOException {
+        return store(userId, mApi.getSegments(mReadKey, userId));
+    }
+
+    private Entry store(String userId, SegmentResponse response) throws IOException {
+        if (response == null) {
+            // Never cached, a null entry would be served as if it were a response.
+            throw new IOException("The rules endpoint returned no list of segments for user " + userId);
+        }
+        Entry entry = new Entry(response, System.currentTimeMillis());
+        synchronized (mEntries) {
+            // Evicts the least recently read user when full.
+            mEntries.put(userId, entry);
+        }
+        return entry;
+    }
+
+    private Entry lookup(String userId) {
+        synchronized (mEntries) {
+            return mEntries.get(userId);
+        }
+    }
+
+    private void refreshAsync(final String userId, final Entry entry) {
+        if (! entry.mRefreshing.compareAndSet(false, true)) {
+            return;
+        }
+        if (! mRefreshPermits.tryAcquire()) {
+            // Too many refreshes running, a later read will try again.
+            entry.mRefreshing.set(false);
+            return;
+        }
+
+        try {
+            mRefreshExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        fetch(userId);
+                        mRefreshes.incrementAndGet();
+                    } catch (IOException e) {
+                        // keep serving the current entry
+                        mRefreshFailures.incrementAndGet();
+                    } finally {
+                        entry.mRefreshing.set(false);
+                        mRefreshPermits.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected after close
+            entry.mRefreshing.set(false);
+            mRefreshPermits.release();
+        }
+    }
+
+    private static class Entry {
+        Entry(SegmentResponse response, long fetchedAt) {
+            mResponse = response;
+            mFetchedAt = fetchedAt;
+        }
+
+        final SegmentResponse mResponse;
+        final long mFetchedAt;
+        final AtomicBoolean mRefreshing = new AtomicBoolean(false);
+    }
+
+    private final ConnectoAPI mApi;
+    private final String mReadKey;
+    private volatile long mTtlMillis;
+    private final long mRefreshAheadMillis;
+    private final long mMaxStalenessMillis;
+    private final int mMaxEntries;
+    private final Semaphore mRefreshPermits;
+    private final ExecutorService mRefreshExecutor;
+    // Access ordered, so the eldest entry is the one read least recently. Guarded by itself.
+    private final LinkedHashMap<String, Entry> mEntries;
+
+    private static final Logger LOGGER = Logger.getLogger(SegmentCache.class.getName());
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mStaleHits = new AtomicLong();
+    private final AtomicLong mRefreshes = new AtomicLong();
+    private final AtomicLong mRefreshFailures = new AtomicLong();
+    private ScheduledExecutorService mSnapshotWriter;
+    private File mSnapshotFile;
+
+    public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+    public static final long DEFAULT_REFRESH_AHEAD_MILLIS = 30 * 1000;
+    public static final long DEFAULT_MAX_STALENESS_MILLIS = 60 * 60 * 1000;
+    public static final int DEFAULT_MAX_CONCURRENT_REFRESHES = 4;
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+}
@@ -0,0 +1,63 @@
+package io.connecto.connectoapi;
+
+/**
+ * A snapshot of the reads served by a #{@link SegmentCache}.
+ *
+ * @see SegmentCache#getStats()
+ */
+public class SegmentCacheStats {
+
+    /* package */
+    SegmentCacheStats(int entries, long hits, long misses, long staleHits, long refreshes, long refreshFailures) {
+        mEntries = entries;
+        mHits = hits;
+        mMisses = misses;
+        mStaleHits = staleHits;
+        mRefreshes = refreshes;
+        mRefreshFailures = refreshFailures;
+    }
+
+    /**
+     * @return users currently cached
+     */
+    public int getEntries() { return mEntries; }
+
+    /**
+     * @return reads answered from a cached response within its time to live
+     */
+    public long getHits() { return mHits; }
+
+    /**
+     * @return reads that had to fetch, because nothing was cached or the cached response had expired
+     */
+    public long getMisses() { return mMisses; }
+
+    /**
+     * @return misses answered with an expired response because the fetch failed or ran out of time
+     */
+    public long getStaleHits() { return mStaleHits; }
+
+    /**
+     * @return background refreshes that completed
+     */
+    public long getRefreshes() { return mRefreshes; }
+
+    /**
+     * @return background refreshes that could not reach the rules endpoint
+     */
+    public long getRefreshFailures() { return mRefreshFailures; }
+
+    @Override
+    public String toString() {
+        return "SegmentCacheStats(entries=" + mEntries + ", hits=" + mHits + ", misses=" + mMisses
+                + ", staleHits=" + mStaleHits + ", refreshes=" + mRefreshes
+                + ", refreshFailures=" + mRefreshFailures + ")";
+    }
+
+    private final int mEntries;
+    private final long mHits;
+    private final long mMisses;
+    private final long mStaleHits;
+    private final long mRefreshes;
+    private final long mRefreshFailures;
+}
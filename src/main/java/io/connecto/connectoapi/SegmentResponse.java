@@ -4,12 +4,16 @@ import org.json.JSONArray;
 import org.json.JSONException;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 /**
  * A model class which wraps around a list of segment objects.
  *
- * An instance of this class is returned by the getSegments api.
+ * An instance of this class is returned by the getSegments api. Responses are immutable,
+ * and index their rule ids so membership checks do not scan the segment list.
  * @see ConnectoAPI#getSegments(String, String)
  * */
 public class SegmentResponse {
@@ -25,20 +29,75 @@ public class SegmentResponse {
      * @see ConnectoAPI#getSegments(String, String)
      */
     public SegmentResponse(JSONArray segmentList) throws JSONException {
-        if (segmentList.length() != 0) {
-            mSegments = new ArrayList<Segment>();
-            for (int i = 0; i < segmentList.length(); i++) {
-                Segment segmentObj = null;
-                segmentObj = new Segment(segmentList.getJSONObject(i));
-                mSegments.add(segmentObj);
-            }
+        this(parse(segmentList));
+    }
+
+    /* package */
+    SegmentResponse(List<Segment> segments) {
+        BitSet ruleBits = new BitSet();
+        for (Segment segmentObj : segments) {
+            ruleBits.set(RuleDictionary.indexOf(segmentObj.getRuleId()));
+        }
+        mSegments = Collections.unmodifiableList(segments);
+        mRuleBits = ruleBits;
+    }
+
+    private static List<Segment> parse(JSONArray segmentList) throws JSONException {
+        List<Segment> segments = new ArrayList<Segment>(segmentList.length());
+        for (int i = 0; i < segmentList.length(); i++) {
+            segments.add(RuleDictionary.segment(segmentList.getJSONObject(i)));
         }
+        return segments;
     }
 
+    /**
+     * @return the matched segments, an empty list if the user matched none
+     */
     /* package */
     public List<Segment> getSegments() {
         return mSegments;
     }
 
-    private List<Segment> mSegments;
+    /**
+     * @param ruleId the id of a segment rule
+     * @return true if the user is in the segment with the given rule id
+     */
+    public boolean contains(String ruleId) {
+        int index = RuleDictionary.indexOf(ruleId);
+        return index >= 0 && mRuleBits.get(index);
+    }
+
+    /**
+     * @param ruleIds ids of segment rules
+     * @return true if the user is in at least one of the given segments
+     */
+    public boolean containsAny(Collection<String> ruleIds) {
+        for (String ruleId : ruleIds) {
+            if (contains(ruleId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param ruleIds ids of segment rules
+     * @return true if the user is in every one of the given segments
+     */
+    public boolean containsAll(Collection<String> ruleIds) {
+        for (String ruleId : ruleIds) {
+            if (! contains(ruleId)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private final List<Segment> mSegments;
+    private final BitSet mRuleBits;
+
+    /**
+     * A response for a user in no segments.
+     */
+    public static final SegmentResponse EMPTY = new SegmentResponse(new ArrayList<Segment>());
 }
@@ -0,0 +1,196 @@
+package io.connecto.connectoapi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Reads and writes the contents of a SegmentCache as a compact binary file.
+ *
+ * Every distinct rule is written once, and each user's response as indices into that table.
+ * Files are written beside their destination and moved into place, so a reader never sees
+ * a partial snapshot, and end with a CRC32 so a damaged file is ignored rather than loaded.
+ *
+ * <pre>
+ *   int magic, int version
+ *   int ruleCount, ruleCount * (string ruleId, string title)
+ *   int entryCount, entryCount * (string userId, long fetchedAt, int size, size * int ruleIndex)
+ *   long crc32 of everything before it
+ * </pre>
+ * Strings are an int byte length followed by UTF-8.
+ */
+/* package */
+final class SegmentSnapshot {
+
+    private SegmentSnapshot() {}
+
+    static class Record {
+        Record(String userId, SegmentResponse response, long fetchedAt) {
+            mUserId = userId;
+            mResponse = response;
+            mFetchedAt = fetchedAt;
+        }
+
+        final String mUserId;
+        final SegmentResponse mResponse;
+        final long mFetchedAt;
+    }
+
+    /**
+     * Records without a response are skipped.
+     */
+    static void write(File file, Collection<Record> candidates) throws IOException {
+        List<Record> records = new ArrayList<Record>(candidates.size());
+        for (Record record : candidates) {
+            if (record.mResponse != null) {
+                records.add(record);
+            }
+        }
+
+        // Segments are shared through the RuleDictionary, so identity finds the repeats.
+        Map<Segment, Integer> rules = new IdentityHashMap<Segment, Integer>();
+        List<Segment> ruleTable = new ArrayList<Segment>();
+        for (Record record : records) {
+            for (Segment segment : record.mResponse.getSegments()) {
+                if (! rules.containsKey(segment)) {
+                    rules.put(segment, ruleTable.size());
+                    ruleTable.add(segment);
+                }
+            }
+        }
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        File temp = File.createTempFile(file.getName(), ".tmp", parent);
+        try {
+            CRC32 crc = new CRC32();
+            BufferedOutputStream buffered = new BufferedOutputStream(new FileOutputStream(temp));
+            try {
+                DataOutputStream out = new DataOutputStream(new CheckedOutputStream(buffered, crc));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(ruleTable.size());
+                for (Segment segment : ruleTable) {
+                    writeString(out, segment.getRuleId());
+                    writeString(out, segment.getTitle());
+                }
+                out.writeInt(records.size());
+                for (Record record : records) {
+                    writeString(out, record.mUserId);
+                    out.writeLong(record.mFetchedAt);
+                    List<Segment> segments = record.mResponse.getSegments();
+                    out.writeInt(segments.size());
+                    for (Segment segment : segments) {
+                        out.writeInt(rules.get(segment));
+                    }
+                }
+                out.flush();
+                // The checksum is written past the CheckedOutputStream, it doesn't cover itself.
+                new DataOutputStream(buffered).writeLong(crc.getValue());
+            } finally {
+                buffered.close();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Reads a snapshot through a memory mapping of the file.
+     *
+     * @return the records in the snapshot, or an empty list if the file does not exist or is damaged
+     */
+    static List<Record> read(File file) throws IOException {
+        if (! file.isFile()) {
+            return new ArrayList<Record>();
+        }
+
+        // Typed as ByteBuffer so calls link against methods that exist on Java 8.
+        ByteBuffer in;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+
+        int contentLength = in.remaining() - TRAILER_LENGTH;
+        if (contentLength < HEADER_LENGTH || in.getLong(contentLength) != checksum(in.duplicate(), contentLength)) {
+            return new ArrayList<Record>();
+        }
+
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                return new ArrayList<Record>();
+            }
+            Segment[] ruleTable = new Segment[in.getInt()];
+            for (int i = 0; i < ruleTable.length; i++) {
+                String ruleId = readString(in);
+                ruleTable[i] = RuleDictionary.segment(ruleId, readString(in));
+            }
+            int entryCount = in.getInt();
+            List<Record> records = new ArrayList<Record>(entryCount);
+            for (int i = 0; i < entryCount; i++) {
+                String userId = readString(in);
+                long fetchedAt = in.getLong();
+                int size = in.getInt();
+                List<Segment> segments = new ArrayList<Segment>(size);
+                for (int j = 0; j < size; j++) {
+                    segments.add(ruleTable[in.getInt()]);
+                }
+                records.add(new Record(userId, new SegmentResponse(segments), fetchedAt));
+            }
+            return records;
+        } catch (RuntimeException e) {
+            // Written by a different version, a matching checksum doesn't make it readable.
+            return new ArrayList<Record>();
+        }
+    }
+
+    private static long checksum(ByteBuffer in, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[8192];
+        for (int remaining = length; remaining > 0; ) {
+            int n = Math.min(chunk.length, remaining);
+            in.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            remaining -= n;
+        }
+        return crc.getValue();
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] utf8 = new byte[in.getInt()];
+        in.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static final int MAGIC = 0x434e5353; // "CNSS"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final int TRAILER_LENGTH = 8;
+}
@@ -0,0 +1,218 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A first-in, first-out file of messages, one JSON object per line, that holds queued
+ * messages that do not fit in memory. The file is deleted whenever it is fully read.
+ *
+ * Each line starts with the message's build time and trait hashes, separated from the
+ * message by a tab, which JSON text never holds unescaped.
+ *
+ * Not thread safe, DeliveryQueue guards it with its own lock.
+ */
+/* package */
+class SpillFile {
+    SpillFile(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @param builtNanos when the message was built, or 0 if it wasn't traced
+     * @param traitHashes the hashes to remember once the message is acknowledged, or null
+     */
+    void append(String messageJson, long builtNanos, long[] traitHashes) throws IOException {
+        if (mWriter == null) {
+            if (! mDirectory.isDirectory() && ! mDirectory.mkdirs()) {
+                throw new IOException("Can't create spill directory " + mDirectory);
+            }
+            mFile = File.createTempFile("connecto-spill-", ".ndjson", mDirectory);
+            mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mFile, true), StandardCharsets.UTF_8));
+        }
+        mWriter.write(Long.toString(builtNanos));
+        if (traitHashes != null) {
+            for (long hash : traitHashes) {
+                mWriter.write(' ');
+                mWriter.write(Long.toString(hash));
+            }
+        }
+        mWriter.write('\t');
+        mWriter.write(messageJson);
+        mWriter.write('\n');
+        mWritten++;
+    }
+
+    /**
+     * @return the oldest record in the file, without removing it, or null if the file is empty
+     */
+    Record peek() throws IOException {
+        if (isEmpty()) {
+            return null;
+        }
+        if (mPeeked == null) {
+            mPeeked = parse(readLine());
+        }
+        return mPeeked;
+    }
+
+    /**
+     * @return the oldest message in the file, or null if the file is empty
+     */
+    JSONObject poll() throws IOException {
+        Record record = peek();
+        if (record == null) {
+            return null;
+        }
+        File file = mFile;
+        mPeeked = null;
+        mRead++;
+        if (isEmpty()) {
+            reset();
+        }
+
+        try {
+            return new JSONObject(record.mJson);
+        } catch (JSONException e) {
+            throw new IOException("Spill file " + file + " is corrupt", e);
+        }
+    }
+
+    /**
+     * Moves the messages not yet read to a new file in the same directory, copying them
+     * line by line, and empties this spill file.
+     *
+     * @return the new file
+     */
+    File keepUnread() throws IOException {
+        File kept = File.createTempFile("connecto-unsent-", ".ndjson", mDirectory);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(kept), StandardCharsets.UTF_8));
+        try {
+            while (! isEmpty()) {
+                // Kept as plain messages, the build times mean nothing to another process.
+                Record record = peek();
+                mPeeked = null;
+                mRead++;
+                out.write(record.mJson);
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+            reset();
+        }
+        return kept;
+    }
+
+    private String readLine() throws IOException {
+        if (mReader == null) {
+            mReader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), StandardCharsets.UTF_8));
+        }
+        mWriter.flush();
+
+        String line = mReader.readLine();
+        if (line == null) {
+            throw new IOException("Spill file " + mFile + " is shorter than expected");
+        }
+        return line;
+    }
+
+    private Record parse(String line) throws IOException {
+        int tab = line.indexOf('\t');
+        if (tab < 0) {
+            throw new IOException("Spill file " + mFile + " is corrupt");
+        }
+        try {
+            String[] header = line.substring(0, tab).split(" ");
+            long[] traitHashes = null;
+            if (header.length > 1) {
+                traitHashes = new long[header.length - 1];
+                for (int i = 1; i < header.length; i++) {
+                    traitHashes[i - 1] = Long.parseLong(header[i]);
+                }
+            }
+            return new Record(line.substring(tab + 1), Long.parseLong(header[0]), traitHashes);
+        } catch (NumberFormatException e) {
+            throw new IOException("Spill file " + mFile + " is corrupt", e);
+        }
+    }
+
+    boolean isEmpty() {
+        return mRead == mWritten;
+    }
+
+    long size() {
+        return mWritten - mRead;
+    }
+
+    /**
+     * Closes and deletes the file, discarding anything not yet read.
+     */
+    void reset() {
+        closeQuietly(mWriter);
+        closeQuietly(mReader);
+        if (mFile != null && ! mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+        mWriter = null;
+        mReader = null;
+        mFile = null;
+        mPeeked = null;
+        mWritten = 0;
+        mRead = 0;
+    }
+
+    private static void closeQuietly(Writer writer) {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                // nothing more to do with it
+            }
+        }
+    }
+
+    private static void closeQuietly(Reader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing more to do with it
+            }
+        }
+    }
+
+    /**
+     * A spilled message as JSON text, with what the queue knew of it besides its payload.
+     */
+    static class Record {
+        Record(String json, long builtNanos, long[] traitHashes) {
+            mJson = json;
+            mBuiltNanos = builtNanos;
+            mTraitHashes = traitHashes;
+        }
+
+        final String mJson;
+        final long mBuiltNanos;
+        final long[] mTraitHashes;
+    }
+
+    private final File mDirectory;
+    private File mFile = null;
+    private Writer mWriter = null;
+    private BufferedReader mReader = null;
+    private Record mPeeked = null;
+    private long mWritten = 0;
+    private long mRead = 0;
+}
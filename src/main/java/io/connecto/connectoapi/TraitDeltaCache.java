@@ -0,0 +1,166 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers, for the most recently identified users, a hash of each trait value the server
+ * has acknowledged, so identify messages can be cut down to the traits that changed.
+ *
+ * Each user costs two longs per trait. Users are evicted least recently used first, after which
+ * their next identify is sent in full.
+ */
+/* package */
+class TraitDeltaCache {
+
+    /**
+     * An identify message reduced to its changed traits, with the hashes to remember once
+     * it has been acknowledged.
+     */
+    static final class Delta {
+        Delta(JSONObject message, String userId, long[] hashes) {
+            mMessage = message;
+            mUserId = userId;
+            mHashes = hashes;
+        }
+
+        JSONObject getMessage() { return mMessage; }
+
+        String getUserId() { return mUserId; }
+
+        /**
+         * @return key and value hashes of the changed traits, alternating, or null if the message is not tracked
+         */
+        long[] getHashes() { return mHashes; }
+
+        private final JSONObject mMessage;
+        private final String mUserId;
+        private final long[] mHashes;
+    }
+
+    TraitDeltaCache(final int maxUsers) {
+        if (maxUsers < 1) {
+            throw new IllegalArgumentException("maxUsers must be positive");
+        }
+        mUsers = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > maxUsers;
+            }
+        };
+    }
+
+    /**
+     * @return the message with unchanged traits removed, or null if no trait has changed.
+     *      Messages other than identify messages with a user and an object of traits are passed as they are.
+     */
+    Delta filter(JSONObject message) {
+        JSONObject traits = message.optJSONObject("traits");
+        String userId = message.optString("userId", null);
+        if (traits == null || userId == null || ! "identify".equals(message.optString("type"))) {
+            return new Delta(message, userId, null);
+        }
+
+        long[] known;
+        synchronized (this) {
+            known = mUsers.get(userId);
+        }
+
+        long[] changed = new long[traits.length() * 2];
+        int count = 0;
+        JSONObject changedTraits = new JSONObject();
+        try {
+            Iterator<?> keys = traits.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                Object value = traits.get(key);
+                long keyHash = hash(key);
+                long valueHash = hash(value instanceof String ? JSONObject.quote((String) value) : String.valueOf(value));
+                if (known == null || ! contains(known, keyHash, valueHash)) {
+                    changedTraits.put(key, value);
+                    changed[count++] = keyHash;
+                    changed[count++] = valueHash;
+                }
+            }
+            if (count == 0 && traits.length() > 0) {
+                mSuppressed.incrementAndGet();
+                return null;
+            }
+
+            JSONObject reduced = new JSONObject(message, JSONObject.getNames(message));
+            reduced.put("traits", changedTraits);
+            return new Delta(reduced, userId, Arrays.copyOf(changed, count));
+        } catch (JSONException e) {
+            // Shouldn't happen, every key was read from the message itself. Send it unchanged.
+            return new Delta(message, userId, null);
+        }
+    }
+
+    /**
+     * Remembers traits the server has accepted.
+     */
+    synchronized void acknowledge(String userId, long[] hashes) {
+        if (userId == null || hashes == null || hashes.length == 0) {
+            return;
+        }
+        long[] known = mUsers.get(userId);
+        if (known == null) {
+            mUsers.put(userId, hashes.clone());
+            return;
+        }
+
+        long[] merged = Arrays.copyOf(known, known.length + hashes.length);
+        int length = known.length;
+        for (int i = 0; i < hashes.length; i += 2) {
+            int at = indexOf(merged, length, hashes[i]);
+            if (at < 0) {
+                at = length;
+                length += 2;
+                merged[at] = hashes[i];
+            }
+            merged[at + 1] = hashes[i + 1];
+        }
+        mUsers.put(userId, length == merged.length ? merged : Arrays.copyOf(merged, length));
+    }
+
+    /**
+     * @return identify messages dropped because none of their traits had changed
+     */
+    long getSuppressed() {
+        return mSuppressed.get();
+    }
+
+    private static boolean contains(long[] known, long keyHash, long valueHash) {
+        int at = indexOf(known, known.length, keyHash);
+        return at >= 0 && known[at + 1] == valueHash;
+    }
+
+    private static int indexOf(long[] pairs, int length, long keyHash) {
+        for (int i = 0; i < length; i += 2) {
+            if (pairs[i] == keyHash) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 64 bit FNV-1a over the UTF-16 code units
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+            hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private final LinkedHashMap<String, long[]> mUsers;
+    private final AtomicLong mSuppressed = new AtomicLong();
+}
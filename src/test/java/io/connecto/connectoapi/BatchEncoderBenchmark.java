@@ -0,0 +1,55 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the size and encode time of each BatchEncoder on typical track batches.
+ *
+ * Not run by the test suite. Run with:
+ * <pre>
+ * {@code
+ *     mvn test-compile exec:java -Dexec.mainClass=io.connecto.connectoapi.BatchEncoderBenchmark -Dexec.classpathScope=test
+ * }
+ * </pre>
+ */
+public class BatchEncoderBenchmark {
+
+    public static void main(String[] args) throws IOException, JSONException {
+        MessageBuilder builder = new MessageBuilder("a token");
+        List<JSONObject> batch = new ArrayList<JSONObject>();
+        for (int i = 0; i < Config.MAX_MESSAGE_SIZE; i++) {
+            JSONObject props = new JSONObject();
+            props.put("count", i);
+            props.put("price", 19.99);
+            props.put("sku", "SKU-" + i);
+            batch.add(builder.event("user " + i, "Add to Cart", "track", props));
+        }
+
+        BatchEncoder[] encoders = { new JsonBatchEncoder(), new EnvelopeBatchEncoder(), new MessagePackBatchEncoder() };
+        for (BatchEncoder encoder : encoders) {
+            PooledBuffer buffer = PooledBuffer.forThread();
+            encoder.encode(batch, buffer);
+            double bytesPerEvent = (double) buffer.size() / batch.size();
+
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                encoder.encode(batch, PooledBuffer.forThread());
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                encoder.encode(batch, PooledBuffer.forThread());
+            }
+            double nanosPerEvent = (double) (System.nanoTime() - start) / MEASURED_ROUNDS / batch.size();
+
+            System.out.printf("%-28s %8.1f bytes/event %10.1f ns/event%n",
+                    encoder.getClass().getSimpleName(), bytesPerEvent, nanosPerEvent);
+        }
+    }
+
+    private static final int WARMUP_ROUNDS = 2000;
+    private static final int MEASURED_ROUNDS = 5000;
+}
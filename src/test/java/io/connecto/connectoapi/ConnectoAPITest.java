@@ -7,8 +7,15 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit test for simple App.
@@ -356,6 +363,1415 @@ public class ConnectoAPITest
         }
     }
 
+    public void testCloseFlushesQueuedMessages() {
+        final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                sends.add(dataString);
+                return true;
+            }
+        };
+
+        int totalToSend = (Config.MAX_MESSAGE_SIZE * 2) + 1;
+        for (int i = 0; i < totalToSend; i++) {
+            api.enqueue(mBuilder.event("a distinct id", "counted", "track", null));
+        }
+        api.enqueue(mBuilder.set("a distinct id", "identify", mSampleProps));
+
+        try {
+            api.close(java.time.Duration.ofSeconds(5));
+        } catch (IOException e) {
+            throw new RuntimeException("Apparently impossible IOException", e);
+        }
+        assertEquals(4, sends.size());
+
+        try {
+            api.enqueue(mBuilder.event("a distinct id", "late", "track", null));
+            fail("enqueue did not throw after close");
+        } catch (IllegalStateException e) {
+            // ok
+        }
+    }
+
+    public void testCloseReportsUndelivered() {
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                return false;
+            }
+        };
+        api.enqueue(mBuilder.event("a distinct id", "refused", "track", null));
+
+        try {
+            api.close();
+            fail("close did not report refused messages");
+        } catch (ConnectoServerException e) {
+            assertEquals(1, e.getBadDeliveryContents().size());
+        } catch (IOException e) {
+            fail("Unexpected IOException " + e);
+        }
+
+        // A batch still in flight at the deadline is reported apart, it may yet be delivered.
+        final java.util.concurrent.CountDownLatch answer = new java.util.concurrent.CountDownLatch(1);
+        ConnectoAPI slow = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                try {
+                    answer.await();
+                } catch (InterruptedException e) {
+                    // answered anyway
+                }
+                return true;
+            }
+        };
+        slow.enqueue(mBuilder.event("a distinct id", "slow", "track", null));
+        try {
+            slow.close(java.time.Duration.ofMillis(200));
+            fail("close did not report the message in flight");
+        } catch (ConnectoServerException e) {
+            assertEquals(0, e.getBadDeliveryContents().size());
+            assertEquals(1, e.getInFlightContents().size());
+            assertTrue(e.getMessage(), e.getMessage().contains("1 were still in flight"));
+        } catch (IOException e) {
+            fail("Unexpected IOException " + e);
+        } finally {
+            answer.countDown();
+        }
+    }
+
+    public void testSegmentCacheRefreshAhead() throws Exception {
+        final List<String> fetches = Collections.synchronizedList(new ArrayList<String>());
+        final boolean[] rulesDown = { false };
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "http://localhost:3003/api/rules/", 12000) {
+            @Override
+            public SegmentResponse getSegments(String readKey, String userId) throws IOException {
+                if (rulesDown[0]) {
+                    throw new IOException("rules endpoint down");
+                }
+                if (userId.equals("no response")) {
+                    return null;
+                }
+                fetches.add(userId);
+                try {
+                    return new SegmentResponse(new JSONArray());
+                } catch (JSONException e) {
+                    throw new RuntimeException("Impossible JSONException", e);
+                }
+            }
+        };
+
+        SegmentCache cache = new SegmentCache(api, "a read key", 200, 150, 10000, 1, 10);
+        SegmentResponse first = cache.get("a distinct id");
+        assertSame(first, cache.get("a distinct id"));
+        assertEquals(1, fetches.size());
+
+        // Inside the refresh-ahead window, the cached response is served while a refresh runs.
+        Thread.sleep(100);
+        assertSame(first, cache.get("a distinct id"));
+        for (int i = 0; i < 50 && fetches.size() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, fetches.size());
+
+        // Expired, but within max staleness, so the stale response is served.
+        rulesDown[0] = true;
+        Thread.sleep(250);
+        assertNotNull(cache.get("a distinct id"));
+
+        // A missing response is an error, and is never cached.
+        rulesDown[0] = false;
+        try {
+            cache.get("no response");
+            fail("A null response should not be served");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, cache.size());
+        cache.close();
+    }
+
+    public void testSegmentCacheSnapshotWarmStart() throws Exception {
+        final List<String> fetches = Collections.synchronizedList(new ArrayList<String>());
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "http://localhost:3003/api/rules/", 12000) {
+            @Override
+            public SegmentResponse getSegments(String readKey, String userId) throws IOException {
+                fetches.add(userId);
+                try {
+                    return new SegmentResponse(new JSONArray("[{\"_id\":\"rule-" + userId + "\",\"title\":\"\u03C0\"},{\"_id\":\"shared\",\"title\":\"S\"}]"));
+                } catch (JSONException e) {
+                    throw new RuntimeException("Impossible JSONException", e);
+                }
+            }
+        };
+
+        File snapshot = File.createTempFile("connecto-segments", ".snapshot");
+        try {
+            SegmentCache cold = new SegmentCache(api, "a read key");
+            assertEquals("A missing or empty snapshot loads nothing", 0, cold.enableSnapshots(snapshot, Duration.ofHours(1)));
+            cold.get("a");
+            cold.get("b");
+            cold.close();
+            assertEquals(2, fetches.size());
+
+            SegmentCache warm = new SegmentCache(api, "a read key");
+            assertEquals(2, warm.enableSnapshots(snapshot, Duration.ofHours(1)));
+            SegmentResponse loaded = warm.get("a");
+            assertEquals("Loaded entries are served without fetching", 2, fetches.size());
+            assertTrue(loaded.containsAll(Arrays.asList("rule-a", "shared")));
+            assertFalse(loaded.contains("rule-b"));
+            assertEquals("\u03C0", loaded.getSegments().get(0).getTitle());
+            warm.close();
+
+            // A damaged snapshot is ignored rather than loaded.
+            java.io.RandomAccessFile damaged = new java.io.RandomAccessFile(snapshot, "rw");
+            damaged.seek(20);
+            damaged.write(0xff);
+            damaged.close();
+            assertEquals(0, new SegmentCache(api, "a read key").loadSnapshot(snapshot));
+
+            // Records without a response are left out rather than failing the snapshot.
+            SegmentSnapshot.write(snapshot, Arrays.asList(
+                    new SegmentSnapshot.Record("none", null, System.currentTimeMillis()),
+                    new SegmentSnapshot.Record("a", loaded, System.currentTimeMillis())));
+            List<SegmentSnapshot.Record> records = SegmentSnapshot.read(snapshot);
+            assertEquals(1, records.size());
+            assertEquals("a", records.get(0).mUserId);
+        } finally {
+            snapshot.delete();
+        }
+    }
+
+    public void testSegmentResponseMembership() throws JSONException {
+        JSONArray segments = new JSONArray("[{\"_id\":\"rule-a\",\"title\":\"A\"},{\"_id\":\"rule-b\",\"title\":\"B\"}]");
+        SegmentResponse response = new SegmentResponse(segments);
+        SegmentResponse other = new SegmentResponse(new JSONArray(segments.toString()));
+
+        assertTrue(response.contains("rule-a"));
+        assertFalse(response.contains("rule-never-seen"));
+        assertTrue(response.containsAny(Arrays.asList("rule-never-seen", "rule-b")));
+        assertTrue(response.containsAll(Arrays.asList("rule-a", "rule-b")));
+        assertFalse(response.containsAll(Arrays.asList("rule-a", "rule-never-seen")));
+        assertSame(response.getSegments().get(0), other.getSegments().get(0));
+
+        SegmentResponse empty = new SegmentResponse(new JSONArray());
+        assertEquals(0, empty.getSegments().size());
+        assertFalse(empty.contains("rule-a"));
+    }
+
+    public void testIdentifyLaneNotBlockedByTrackBacklog() throws Exception {
+        final java.util.concurrent.CountDownLatch releaseTracks = new java.util.concurrent.CountDownLatch(1);
+        final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                if (dataString.contains("\"track\"")) {
+                    try {
+                        releaseTracks.await();
+                    } catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+                sends.add(dataString);
+                return true;
+            }
+        };
+        api.setDeliveryLanes(Arrays.asList(DeliveryLane.identifyLane(1, 1, 0), DeliveryLane.defaultLane(1, 60000)));
+        api.setMaxInFlight(2);
+
+        for (int i = 0; i < Config.MAX_MESSAGE_SIZE * 2; i++) {
+            api.enqueue(mBuilder.event("a distinct id", "counted", "track", null));
+        }
+        api.enqueue(mBuilder.set("a distinct id", "identify", mSampleProps));
+
+        for (int i = 0; i < 100 && sends.isEmpty(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, sends.size());
+        assertTrue(sends.get(0).contains("\"identify\""));
+
+        releaseTracks.countDown();
+        api.close();
+        assertEquals(3, sends.size());
+    }
+
+    public void testSegmentsDeadlineAndHedging() throws Exception {
+        final java.util.concurrent.atomic.AtomicInteger calls = new java.util.concurrent.atomic.AtomicInteger();
+        final boolean[] slowFirstCall = { false };
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "http://localhost:3003/api/rules/", 12000) {
+            @Override
+            SegmentResponse getSegments(String readKey, String userId, int timeoutMillis) throws IOException {
+                assertTrue("Requests time out within the deadline", timeoutMillis > 0 && timeoutMillis <= 1000);
+                int call = calls.incrementAndGet();
+                if (slowFirstCall[0] && (call % 2 == 1)) {
+                    try {
+                        Thread.sleep(2000);
+                    } catch (InterruptedException e) {
+                        throw new IOException("cancelled");
+                    }
+                }
+                return SegmentResponse.EMPTY;
+            }
+        };
+        api.setSegmentHedgePercentile(0.9);
+
+        // Gather enough fast samples to hedge from.
+        for (int i = 0; i < 20; i++) {
+            assertSame(SegmentResponse.EMPTY, api.getSegments("a read key", "a distinct id", java.time.Duration.ofSeconds(1), null));
+        }
+
+        slowFirstCall[0] = true;
+        calls.set(0);
+        long start = System.currentTimeMillis();
+        assertSame(SegmentResponse.EMPTY, api.getSegments("a read key", "a distinct id", java.time.Duration.ofSeconds(1), null));
+        assertTrue("Hedge answered before the slow request", System.currentTimeMillis() - start < 1000);
+        assertEquals(2, calls.get());
+
+        // Without hedging, the deadline caps the wait and the fallback is returned.
+        api.setSegmentHedgePercentile(0);
+        calls.set(0);
+        SegmentResponse fallback = new SegmentResponse(new JSONArray());
+        assertSame(fallback, api.getSegments("a read key", "a distinct id", java.time.Duration.ofMillis(100), fallback));
+        api.close();
+
+        // Once every lookup thread is taken, lookups fall back at once instead of queueing.
+        final java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        final java.util.concurrent.atomic.AtomicInteger stuckCalls = new java.util.concurrent.atomic.AtomicInteger();
+        ConnectoAPI stuck = new ConnectoAPI("http://localhost:3003/import", "http://localhost:3003/api/rules/", 12000) {
+            @Override
+            SegmentResponse getSegments(String readKey, String userId, int timeoutMillis) throws IOException {
+                stuckCalls.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    // cancelled, carry on waiting for the release
+                    try {
+                        release.await();
+                    } catch (InterruptedException again) {
+                        throw new IOException("interrupted");
+                    }
+                }
+                return SegmentResponse.EMPTY;
+            }
+        };
+        for (int i = 0; i < 1000 && stuckCalls.get() < 64; i++) {
+            assertSame(fallback, stuck.getSegments("a read key", "a distinct id", java.time.Duration.ofMillis(5), fallback));
+        }
+        assertEquals(64, stuckCalls.get());
+        start = System.currentTimeMillis();
+        assertSame(fallback, stuck.getSegments("a read key", "a distinct id", java.time.Duration.ofSeconds(10), fallback));
+        assertTrue("Saturated lookups don't wait for the deadline", System.currentTimeMillis() - start < 5000);
+        assertEquals(64, stuckCalls.get());
+        release.countDown();
+        stuck.close();
+    }
+
+    public void testMessagePackBatches() throws IOException {
+        final List<String> contentTypes = new ArrayList<String>();
+        final List<Integer> lengths = new ArrayList<Integer>();
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            boolean sendData(byte[] data, int length, String contentType, String endpointUrl) {
+                contentTypes.add(contentType);
+                lengths.add(length);
+                assertEquals("Batch is an array of one message", 0x91, data[0] & 0xff);
+                return true;
+            }
+        };
+        api.setBatchEncoder(new MessagePackBatchEncoder());
+
+        JSONObject event = mBuilder.event("a distinct id", "login", "track", mSampleProps);
+        api.sendMessage(event);
+
+        assertEquals(Arrays.asList("application/msgpack"), contentTypes);
+        int jsonLength = api.dataString(Arrays.asList(event)).getBytes("utf-8").length;
+        assertTrue("MessagePack is smaller than JSON", lengths.get(0) < jsonLength);
+    }
+
+    public void testEnvelopeBatchSharesContext() throws IOException, JSONException {
+        MessageBuilder otherKey = new MessageBuilder("another token");
+        List<JSONObject> batch = Arrays.asList(
+                mBuilder.event("a distinct id", "login", "track", mSampleProps),
+                otherKey.event("a distinct id", "login", "track", null),
+                mBuilder.event("another id", "logout", "track", null));
+
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        new EnvelopeBatchEncoder().encode(batch, out);
+        JSONArray envelopes = new JSONObject(out.toString("utf-8")).getJSONArray("envelopes");
+
+        // Messages are grouped by shared context, unless the minute rolled over between builds.
+        assertTrue(envelopes.length() >= 2);
+        JSONObject first = envelopes.getJSONObject(0);
+        assertEquals("a token", first.getString("writeKey"));
+        assertEquals("connecto-java", first.getJSONObject("context").getJSONObject("library").getString("name"));
+
+        JSONObject message = first.getJSONArray("batch").getJSONObject(0);
+        assertFalse(message.has("writeKey"));
+        assertFalse(message.has("context"));
+        assertEquals("login", message.getString("event"));
+        assertEquals("prop value", message.getJSONObject("properties").getString("prop key"));
+    }
+
+    public void testQueueByteBudgetOverflow() throws Exception {
+        final java.util.concurrent.CountDownLatch releaseSends = new java.util.concurrent.CountDownLatch(1);
+        final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                try {
+                    releaseSends.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+                sends.add(dataString);
+                return true;
+            }
+        };
+        JSONObject event = mBuilder.event("a distinct id", "counted", "track", null);
+        int messageBytes = event.toString().length();
+        api.setMaxQueuedBytes(messageBytes * 10);
+
+        int accepted = 0;
+        for (int i = 0; i < 15; i++) {
+            if (api.enqueue(mBuilder.event("a distinct id", "counted", "track", null))) {
+                accepted++;
+            }
+        }
+        DeliveryStats stats = api.getDeliveryStats();
+        assertEquals(10, accepted);
+        assertEquals(10, stats.getQueuedMessages());
+        assertEquals(5, stats.getDroppedMessages());
+        assertTrue(stats.getQueuedBytes() <= stats.getMaxQueuedBytes());
+
+        releaseSends.countDown();
+        api.flush();
+        assertEquals(0, api.getDeliveryStats().getQueuedBytes());
+        api.close();
+    }
+
+    public void testQueueSpillsToDisk() throws Exception {
+        final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                sends.add(dataString);
+                return true;
+            }
+        };
+        java.io.File spillDirectory = new java.io.File(System.getProperty("java.io.tmpdir"), "connecto-test-spill-" + System.nanoTime());
+        JSONObject event = mBuilder.event("a distinct id", "counted", "track", null);
+        api.setMaxQueuedBytes(event.toString().length() * 3);
+        api.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+        api.setSpillDirectory(spillDirectory);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(api.enqueue(mBuilder.event("a distinct id", "counted", "track", null)));
+        }
+        assertTrue(api.getDeliveryStats().getSpilledMessages() > 0);
+
+        api.flush();
+        int sent = 0;
+        for (String send : sends) {
+            sent += new JSONArray(send).length();
+        }
+        assertEquals(20, sent);
+        assertEquals(0, api.getDeliveryStats().getSpillBacklog());
+        api.close();
+        spillDirectory.delete();
+    }
+
+    public void testSpillFileKeepsTraitHashesAndBuildTime() throws Exception {
+        java.io.File spillDirectory = new java.io.File(System.getProperty("java.io.tmpdir"), "connecto-test-spill-" + System.nanoTime());
+        SpillFile spill = new SpillFile(spillDirectory);
+        spill.append("{\"userId\":\"a\\tb\"}", 42, new long[] { 7, -8 });
+        spill.append("{\"userId\":\"c\"}", 0, null);
+
+        SpillFile.Record first = spill.peek();
+        assertEquals(42, first.mBuiltNanos);
+        assertTrue(Arrays.equals(new long[] { 7, -8 }, first.mTraitHashes));
+        assertEquals("a\tb", spill.poll().getString("userId"));
+        SpillFile.Record second = spill.peek();
+        assertEquals(0, second.mBuiltNanos);
+        assertNull(second.mTraitHashes);
+        assertEquals("c", spill.poll().getString("userId"));
+        assertTrue(spill.isEmpty());
+        spillDirectory.delete();
+    }
+
+    public void testFlushWithFailingSenderDrainsSpillFile() throws Exception {
+        final long[] maxQueuedBytesSeen = { 0 };
+        final ConnectoAPI[] client = { null };
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            boolean sendData(byte[] data, int length, String contentType, String endpointUrl) throws IOException {
+                synchronized (maxQueuedBytesSeen) {
+                    maxQueuedBytesSeen[0] = Math.max(maxQueuedBytesSeen[0], client[0].getDeliveryStats().getQueuedBytes());
+                }
+                throw new IOException("ingest unavailable");
+            }
+        };
+        client[0] = api;
+        final java.io.File spillDirectory = new java.io.File(System.getProperty("java.io.tmpdir"), "connecto-test-spill-" + System.nanoTime());
+        api.setMaxBatchSize(1);
+        api.setMaxQueuedBytes(1000);
+        api.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+        api.setSpillDirectory(spillDirectory);
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(api.enqueue(mBuilder.event("user " + i, "counted", "track", mSampleProps)));
+        }
+        assertTrue(api.getDeliveryStats().getSpillBacklog() > 0);
+
+        final ConnectoAPI flushed = api;
+        final Throwable[] thrown = { null };
+        Thread flush = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushed.flush();
+                } catch (Throwable e) {
+                    thrown[0] = e;
+                }
+            }
+        });
+        flush.start();
+        flush.join(10000);
+        assertFalse("flush should not wait forever on the spill file", flush.isAlive());
+        assertTrue(thrown[0] instanceof ConnectoServerException);
+        assertEquals(10, ((ConnectoServerException) thrown[0]).getBadDeliveryContents().size());
+        assertEquals(0, api.getDeliveryStats().getSpillBacklog());
+        assertEquals(0, api.getDeliveryStats().getQueuedBytes());
+        assertTrue("Spilled messages are brought back within the budget", maxQueuedBytesSeen[0] <= 1000);
+        api.close();
+
+        ConnectoAPI slow = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            boolean sendData(byte[] data, int length, String contentType, String endpointUrl) throws IOException {
+                try {
+                    Thread.sleep(2000);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                return true;
+            }
+        };
+        slow.setMaxBatchSize(1);
+        slow.setMaxQueuedBytes(1000);
+        slow.setOverflowPolicy(OverflowPolicy.SPILL_TO_DISK);
+        slow.setSpillDirectory(spillDirectory);
+        for (int i = 0; i < 10; i++) {
+            slow.enqueue(mBuilder.event("user " + i, "counted", "track", mSampleProps));
+        }
+        long spilled = slow.getDeliveryStats().getSpillBacklog();
+        assertTrue(spilled > 0);
+        try {
+            slow.close(Duration.ofMillis(200));
+            fail("Spilled messages can't be sent before the deadline");
+        } catch (ConnectoServerException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(spilled + " spilled messages were not sent"));
+        }
+        java.io.File[] kept = spillDirectory.listFiles();
+        assertEquals(1, kept.length);
+        assertTrue(kept[0].getName().startsWith("connecto-unsent-"));
+        java.io.BufferedReader lines = new java.io.BufferedReader(new java.io.FileReader(kept[0]));
+        int keptLines = 0;
+        while (lines.readLine() != null) {
+            keptLines++;
+        }
+        lines.close();
+        assertEquals(spilled, keptLines);
+        kept[0].delete();
+        spillDirectory.delete();
+    }
+
+    public void testOffHeapQueue() throws Exception {
+        final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            boolean sendData(byte[] data, int length, String contentType, String endpointUrl) {
+                sends.add(new String(data, 0, length, java.nio.charset.StandardCharsets.UTF_8));
+                return true;
+            }
+        };
+        api.setOffHeapQueueBytes(1024 * 1024);
+
+        for (int i = 0; i < Config.MAX_MESSAGE_SIZE + 1; i++) {
+            api.enqueue(mBuilder.event("a distinct id", "counted", "track", mSampleProps));
+        }
+        api.flush();
+
+        assertEquals(2, sends.size());
+        // the two batches are sent concurrently, in either order
+        JSONArray first = new JSONArray(sends.get(0));
+        if (first.length() == 1) {
+            first = new JSONArray(sends.get(1));
+        }
+        assertEquals(Config.MAX_MESSAGE_SIZE, first.length());
+        assertEquals("\u03C0", first.getJSONObject(0).getJSONObject("properties").getString("ratio"));
+        assertEquals(0, api.getDeliveryStats().getQueuedBytes());
+        api.close();
+    }
+
+    public void testLifecycleTracing() throws Exception {
+        final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                sends.add(dataString);
+                return true;
+            }
+        };
+        api.setLifecycleTracing(true, 1.0);
+        MessageBuilder tracedBuilder = new MessageBuilder("a token");
+        tracedBuilder.setLifecycleTracing(true);
+
+        JSONObject traced = tracedBuilder.event("a distinct id", "counted", "track", null);
+        String built = traced.toString();
+        assertEquals("Tracing adds nothing to the payload", JSONObject.getNames(mBuilder.event("a distinct id", "counted", "track", null)).length,
+                     JSONObject.getNames(traced).length);
+        api.enqueue(traced);
+        assertEquals("Queueing leaves the caller's message as it was", built, traced.toString());
+        for (int i = 1; i < 5; i++) {
+            api.enqueue(tracedBuilder.event("a distinct id", "counted", "track", null));
+        }
+        api.flush();
+
+        assertFalse("Build timestamp is not sent", sends.get(0).contains("builtAt"));
+        LifecycleStats stats = api.getLifecycleStats();
+        assertEquals(5, stats.getLatency(LifecycleStage.BUILT_TO_ENQUEUED).getCount());
+        assertEquals(5, stats.getLatency(LifecycleStage.ENQUEUED_TO_ACKNOWLEDGED).getCount());
+        assertEquals(1, stats.getLatency(LifecycleStage.SENT_TO_ACKNOWLEDGED).getCount());
+        assertEquals(5, stats.getExemplars().size());
+        assertTrue(stats.getExemplars().get(0).isAccepted());
+        api.close();
+    }
+
+    public void testLifecycleTracingCountsAcceptedPartOfBatch() throws Exception {
+        final int[] acceptedMessages = { 0 };
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) throws IOException {
+                if (endpointUrl.equals("http://b/import")) {
+                    return false;
+                }
+                try {
+                    synchronized (acceptedMessages) {
+                        acceptedMessages[0] += new JSONArray(dataString).length();
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+                }
+                return true;
+            }
+        };
+        api.setEventsEndpoints(Arrays.asList("http://a/import", "http://b/import"), EndpointRouting.USER_HASH);
+        api.setLifecycleTracing(true, 1.0);
+        for (int user = 0; user < 20; user++) {
+            api.enqueue(mBuilder.event("user " + user, "counted", "track", null));
+        }
+        try {
+            api.flush();
+        } catch (ConnectoServerException e) {
+            // the messages routed to b
+        }
+
+        LifecycleStats stats = api.getLifecycleStats();
+        assertTrue(acceptedMessages[0] > 0);
+        assertEquals("Accepted messages of a partly failed batch are timed", acceptedMessages[0],
+                     stats.getLatency(LifecycleStage.ENQUEUED_TO_ACKNOWLEDGED).getCount());
+        assertTrue(stats.getLatency(LifecycleStage.SENT_TO_ACKNOWLEDGED).getCount() > 0);
+        boolean sawRejected = false;
+        for (MessageTrace trace : stats.getExemplars()) {
+            sawRejected |= ! trace.isAccepted();
+        }
+        assertTrue(sawRejected);
+        api.close();
+    }
+
+    public void testManagementBeanTunesRunningClient() throws Exception {
+        final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                sends.add(dataString);
+                return true;
+            }
+        };
+        api.setDeliveryLanes(Arrays.asList(DeliveryLane.defaultLane(1, 60000)));
+        api.enqueue(mBuilder.event("a distinct id", "before tuning", "track", null));
+
+        ObjectName name = ConnectoManagement.register("test", api, null);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1L, server.getAttribute(name, "QueuedMessages"));
+            server.setAttribute(name, new Attribute("MaxBatchSize", 2));
+            server.setAttribute(name, new Attribute("MaxInFlight", 2));
+            server.setAttribute(name, new Attribute("ReadTimeoutMillis", 500));
+            assertEquals(2, api.getMaxInFlight());
+            assertEquals(500, api.getReadTimeout());
+
+            server.invoke(name, "setLaneLingerMillis", new Object[] { "default", 0L },
+                          new String[] { String.class.getName(), long.class.getName() });
+            for (int i = 0; i < 4; i++) {
+                api.enqueue(mBuilder.event("a distinct id", "after tuning", "track", null));
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (api.getDeliveryStats().getQueuedMessages() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals("Batches are sent without waiting for the old linger", 0, api.getDeliveryStats().getQueuedMessages());
+            int sentMessages = 0;
+            for (String sent : sends) {
+                int batchSize = new JSONArray(sent).length();
+                assertTrue(batchSize <= 2);
+                sentMessages += batchSize;
+            }
+            assertEquals(5, sentMessages);
+        } finally {
+            ConnectoManagement.unregister(name);
+            api.close();
+        }
+
+        try {
+            api.setLaneLingerMillis("no such lane", 0);
+            fail("Unknown lanes are rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // The default lane the queue adds for lanes that don't accept every message can be tuned too.
+        final List<String> defaultSends = Collections.synchronizedList(new ArrayList<String>());
+        ConnectoAPI identifyOnly = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) {
+                defaultSends.add(dataString);
+                return true;
+            }
+        };
+        identifyOnly.setDeliveryLanes(Arrays.asList(DeliveryLane.identifyLane(1, 1, 60000)));
+        identifyOnly.setLaneLingerMillis("default", 0);
+        identifyOnly.enqueue(mBuilder.event("a distinct id", "not identify", "track", null));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (defaultSends.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("Sent without waiting for the default linger", 1, defaultSends.size());
+        identifyOnly.setLaneLingerMillis("default", 100);
+        identifyOnly.close();
+    }
+
+    public void testEventWriterMatchesMessageBuilder() throws Exception {
+        JSONObject props = new JSONObject();
+        props.put("ratio", "\u03C0 </script> \"quoted\"\n");
+        props.put("count", -42);
+        props.put("price", 19.99);
+        props.put("flags", new JSONArray(Arrays.asList(true, false)));
+        props.put("nested", new JSONObject().put("big", Long.MAX_VALUE));
+
+        EncodedMessage encoded = mBuilder.writer().event("a distinct id", "Add to Cart", "track", props);
+        assertSame("Writers are reused by their thread", mBuilder.writer(), mBuilder.writer());
+        props.put("count", 0);
+
+        JSONObject written = encoded.toJSONObject();
+        JSONObject built = mBuilder.event("a distinct id", "Add to Cart", "track", props);
+        props.put("count", -42);
+        built.put("properties", props);
+        for (String key : new String[] { "type", "event", "channel", "writeKey", "userId", "profileId" }) {
+            assertEquals(key, built.get(key), written.get(key));
+        }
+        assertEquals(built.getJSONObject("context").toString(), written.getJSONObject("context").toString());
+        assertEquals(built.getString("sentAt").length(), written.getString("sentAt").length());
+        assertEquals(UUID.fromString(encoded.getMessageId()).toString(), written.getString("messageId"));
+        JSONObject writtenProps = written.getJSONObject("properties");
+        assertEquals(props.getString("ratio"), writtenProps.getString("ratio"));
+        assertEquals(-42, writtenProps.getInt("count"));
+        assertEquals(19.99, writtenProps.getDouble("price"));
+        assertEquals(Long.MAX_VALUE, writtenProps.getJSONObject("nested").getLong("big"));
+        assertFalse(writtenProps.getJSONArray("flags").getBoolean(1));
+
+        JSONObject identify = mBuilder.writer().identify("a distinct id", "identify", mSampleProps).toJSONObject();
+        checkIdentifyProps(identify);
+        checkModifiers(identify);
+
+        final List<String> sends = Collections.synchronizedList(new ArrayList<String>());
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            boolean sendData(byte[] data, int length, String contentType, String endpointUrl) {
+                sends.add(new String(data, 0, length, java.nio.charset.StandardCharsets.UTF_8));
+                return true;
+            }
+        };
+        api.enqueue(encoded);
+        api.enqueue(mBuilder.writer().identify("a distinct id", "identify", mSampleProps));
+        api.flush();
+        api.close();
+        int sent = 0;
+        for (String batch : sends) {
+            sent += new JSONArray(batch).length();
+        }
+        assertEquals(2, sent);
+    }
+
+    public void testShardedEndpointsFailover() throws Exception {
+        final Map<String, Set<String>> endpointsByUser = new HashMap<String, Set<String>>();
+        final boolean[] bDown = { true };
+
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) throws IOException {
+                if (bDown[0] && endpointUrl.equals("http://b/import")) {
+                    throw new IOException("connection refused");
+                }
+                try {
+                    JSONArray batch = new JSONArray(dataString);
+                    synchronized (endpointsByUser) {
+                        for (int i = 0; i < batch.length(); i++) {
+                            String userId = batch.getJSONObject(i).getString("userId");
+                            if (! endpointsByUser.containsKey(userId)) {
+                                endpointsByUser.put(userId, new HashSet<String>());
+                            }
+                            endpointsByUser.get(userId).add(endpointUrl);
+                        }
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+                }
+                return true;
+            }
+
+            @Override
+            boolean checkEndpoint(String endpointUrl) {
+                return ! (bDown[0] && endpointUrl.equals("http://b/import"));
+            }
+        };
+        api.setEventsEndpoints(Arrays.asList("http://a/import", "http://b/import", "http://c/import"), EndpointRouting.USER_HASH);
+
+        for (int round = 0; round < 5; round++) {
+            ClientDelivery delivery = new ClientDelivery();
+            for (int user = 0; user < 20; user++) {
+                delivery.addMessage(mBuilder.event("user " + user, "round " + round, "track", null));
+            }
+            api.deliver(delivery);
+        }
+        assertEquals("Failing endpoint is ejected", Arrays.asList("http://a/import", "http://c/import"), api.getHealthyEndpoints());
+        assertEquals("Every user was delivered despite the failures", 20, endpointsByUser.size());
+
+        endpointsByUser.clear();
+        bDown[0] = false;
+        api.getEndpoints().checkAll(api);
+        assertEquals(3, api.getHealthyEndpoints().size());
+        for (int round = 0; round < 3; round++) {
+            ClientDelivery delivery = new ClientDelivery();
+            for (int user = 0; user < 20; user++) {
+                delivery.addMessage(mBuilder.event("user " + user, "round " + round, "track", null));
+            }
+            api.deliver(delivery);
+        }
+        Set<String> used = new HashSet<String>();
+        for (Set<String> endpoints : endpointsByUser.values()) {
+            assertEquals("Each user stays on one endpoint", 1, endpoints.size());
+            used.addAll(endpoints);
+        }
+        assertEquals("Users are spread over every healthy endpoint", 3, used.size());
+        api.close();
+    }
+
+    public void testUserHashFailoverFollowsTheRing() throws IOException {
+        List<String> urls = Arrays.asList("http://a/import", "http://b/import", "http://c/import");
+        for (int user = 0; user < 30; user++) {
+            String key = "user " + user;
+            EndpointPool pool = new EndpointPool(urls, EndpointRouting.USER_HASH);
+            final String owner = pool.forKey(key);
+            final List<String> failedOver = new ArrayList<String>();
+            EndpointPool.Attempt<String> attempt = new EndpointPool.Attempt<String>() {
+                @Override
+                public boolean send(String endpointUrl, List<String> messages) throws IOException {
+                    if (endpointUrl.equals(owner)) {
+                        throw new IOException("down");
+                    }
+                    failedOver.add(endpointUrl);
+                    return true;
+                }
+            };
+            // Enough failures to eject the owner, after which the ring routes the user to its successor.
+            for (int i = 0; i < 3; i++) {
+                assertTrue(pool.send(owner, Arrays.asList(key), Arrays.asList(key), attempt).isEmpty());
+            }
+            assertFalse(pool.getHealthyEndpoints().contains(owner));
+            String successor = pool.forKey(key);
+            assertEquals(Arrays.asList(successor, successor, successor), failedOver);
+        }
+    }
+
+    public void testUserHashFailoverSplitsGroupBySuccessor() throws IOException {
+        List<String> urls = Arrays.asList("http://a/import", "http://b/import", "http://c/import");
+        EndpointPool pool = new EndpointPool(urls, EndpointRouting.USER_HASH);
+        List<String> users = new ArrayList<String>();
+        for (int user = 0; user < 200; user++) {
+            users.add("user " + user);
+        }
+        Map<String, List<String>> groups = pool.partition(users, users);
+        final String failed = "http://a/import";
+        List<String> owned = groups.get(failed);
+
+        final Map<String, String> sentTo = new HashMap<String, String>();
+        EndpointPool.Attempt<String> attempt = new EndpointPool.Attempt<String>() {
+            @Override
+            public boolean send(String endpointUrl, List<String> messages) throws IOException {
+                if (endpointUrl.equals(failed)) {
+                    throw new IOException("down");
+                }
+                for (String message : messages) {
+                    sentTo.put(message, endpointUrl);
+                }
+                return ! endpointUrl.equals("http://c/import");
+            }
+        };
+        List<String> refused = pool.send(failed, owned, owned, attempt);
+
+        // Ejecting the endpoint moves its users to their own successors, which is where each was resent.
+        for (int i = 0; i < 3; i++) {
+            try {
+                pool.send(failed, Collections.<String>emptyList(), Collections.<String>emptyList(), attempt);
+            } catch (IOException e) {
+                // only counted as a failure
+            }
+        }
+        assertFalse(pool.getHealthyEndpoints().contains(failed));
+        Set<String> successors = new HashSet<String>();
+        List<String> expectedRefused = new ArrayList<String>();
+        for (String user : owned) {
+            assertEquals(pool.forKey(user), sentTo.get(user));
+            successors.add(sentTo.get(user));
+            if (sentTo.get(user).equals("http://c/import")) {
+                expectedRefused.add(user);
+            }
+        }
+        assertEquals("The failed endpoint's users are spread over both others", 2, successors.size());
+        assertEquals("Only what the refusing successor got is refused", expectedRefused, refused);
+    }
+
+    public void testAdaptiveConcurrencyLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 20);
+        long fast = TimeUnit.MICROSECONDS.toNanos(50);
+
+        // Fast answers with the limit in use grow it additively.
+        for (int round = 0; round < 20; round++) {
+            int limit = limiter.getLimit();
+            for (int i = 0; i < limit; i++) {
+                assertTrue(limiter.tryAcquire());
+            }
+            assertFalse("Requests beyond the limit are refused", limiter.tryAcquire());
+            for (int i = 0; i < limit; i++) {
+                limiter.release(fast, false);
+            }
+        }
+        int grown = limiter.getLimit();
+        assertTrue("Limit grew to " + grown, grown >= 10);
+
+        // Round trips well above the best seen mean the server is queueing.
+        Thread.sleep(1);
+        assertTrue(limiter.tryAcquire());
+        limiter.release(fast * 10, false);
+        assertEquals((int) (grown * 0.9), limiter.getLimit());
+
+        Thread.sleep(1);
+        assertTrue(limiter.tryAcquire());
+        limiter.release(fast, true);
+        assertTrue(limiter.getLimit() <= grown / 2);
+
+        // Segment lookups beyond the limit are shed rather than queued behind a stalled endpoint.
+        final java.net.ServerSocket stalled = new java.net.ServerSocket(0);
+        try {
+            final ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import",
+                    "http://localhost:" + stalled.getLocalPort() + "/api/rules/", 500);
+            api.setMaxInFlight(1);
+            api.setAdaptiveConcurrency(true, 1);
+            assertEquals(1, api.getRulesConcurrencyLimit());
+
+            Thread first = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        api.getSegments("a read key", "a distinct id");
+                    } catch (IOException e) {
+                        // read timeout
+                    }
+                }
+            });
+            first.start();
+            Thread.sleep(100);
+            long start = System.nanoTime();
+            try {
+                api.getSegments("a read key", "another id");
+                fail("Lookup beyond the limit should be shed");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("shed"));
+            }
+            assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(100));
+            first.join();
+
+            api.setAdaptiveConcurrency(false, 1);
+            assertEquals(0, api.getRulesConcurrencyLimit());
+            assertEquals(1, api.getImportConcurrencyLimit());
+            api.close();
+        } finally {
+            stalled.close();
+        }
+    }
+
+    public void testBackfillResumesFromCheckpoint() throws Exception {
+        File input = File.createTempFile("connecto-backfill", ".ndjson");
+        File checkpoint = new File(input.getPath() + ".checkpoint");
+        Date historical = new Date(1000000000000L);
+        String historicalSentAt = mBuilder.returnISODate(historical);
+        try {
+            java.io.Writer out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(input), "utf-8");
+            for (int i = 0; i < 230; i++) {
+                out.write(mBuilder.event("user " + i, "imported", "track", mSampleProps, historical).toString());
+                out.write(i == 7 ? "\r\n" : "\n");
+                if (i == 100) {
+                    out.write("not json\n\n{\"type\":\"unknown\"}\n");
+                }
+            }
+            out.close();
+
+            final Map<String, String> received = new HashMap<String, String>();
+            final int[] sendsBeforeFailure = { 2 };
+            ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+                @Override
+                public boolean sendData(String dataString, String endpointUrl) throws IOException {
+                    synchronized (received) {
+                        if (sendsBeforeFailure[0]-- == 0) {
+                            sendsBeforeFailure[0] = 0;
+                            throw new IOException("ingest unavailable");
+                        }
+                        try {
+                            JSONArray batch = new JSONArray(dataString);
+                            for (int i = 0; i < batch.length(); i++) {
+                                JSONObject message = batch.getJSONObject(i);
+                                received.put(message.getString("messageId"), message.getString("sentAt"));
+                            }
+                        } catch (JSONException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    return true;
+                }
+            };
+
+            Backfill interrupted = new Backfill(api, input, checkpoint);
+            interrupted.setSendConcurrency(1);
+            interrupted.setMaxRetries(0);
+            try {
+                interrupted.run();
+                fail("Backfill should stop when batches cannot be sent");
+            } catch (IOException e) {
+                // expected
+            }
+            long stoppedAt = interrupted.getProgress().getCommittedOffset();
+            assertTrue(stoppedAt > 0 && stoppedAt < input.length());
+            assertEquals(2 * Config.MAX_MESSAGE_SIZE, received.size());
+
+            synchronized (received) {
+                sendsBeforeFailure[0] = Integer.MAX_VALUE;
+            }
+            final List<BackfillProgress> reports = new ArrayList<BackfillProgress>();
+            Backfill resumed = new Backfill(api, input, checkpoint);
+            resumed.setParallelism(3);
+            resumed.setProgressListener(new BackfillListener() {
+                @Override
+                public void onProgress(BackfillProgress progress) {
+                    reports.add(progress);
+                }
+            }, Duration.ofHours(1));
+            BackfillProgress done = resumed.run();
+
+            assertEquals("Every message is sent exactly once", 230, received.size());
+            assertEquals(new HashSet<String>(Arrays.asList(historicalSentAt)), new HashSet<String>(received.values()));
+            assertEquals(2, done.getInvalidLines());
+            assertEquals(input.length(), done.getCommittedOffset());
+            assertTrue(done.isFinished());
+            assertEquals(Duration.ZERO, done.getEstimatedRemaining());
+            assertTrue(reports.get(reports.size() - 1).isFinished());
+            api.close();
+        } finally {
+            input.delete();
+            checkpoint.delete();
+        }
+    }
+
+    public void testBackfillCountsEventsAndIdentifiesSeparately() throws Exception {
+        File input = File.createTempFile("connecto-backfill", ".ndjson");
+        File checkpoint = new File(input.getPath() + ".checkpoint");
+        Date historical = new Date(1000000000000L);
+        try {
+            java.io.Writer out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(input), "utf-8");
+            for (int i = 0; i < 10; i++) {
+                out.write(mBuilder.event("user " + i, "imported", "track", mSampleProps, historical).toString() + "\n");
+                JSONObject identify = mBuilder.identify("user " + i, "identify", mSampleProps);
+                identify.put("sentAt", mBuilder.returnISODate(historical));
+                out.write(identify.toString() + "\n");
+            }
+            out.close();
+
+            final int[] eventSends = { 0 };
+            ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+                @Override
+                public boolean sendData(String dataString, String endpointUrl) {
+                    if (dataString.contains("\"identify\"")) {
+                        return false;
+                    }
+                    eventSends[0]++;
+                    return true;
+                }
+            };
+
+            // An unreadable checkpoint stops the backfill rather than starting it over.
+            new java.io.FileOutputStream(checkpoint).close();
+            try {
+                new Backfill(api, input, checkpoint).run();
+                fail("An empty checkpoint should not be read as offset 0");
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(0, eventSends[0]);
+            checkpoint.delete();
+
+            BackfillProgress done = new Backfill(api, input, checkpoint).run();
+            assertEquals("Events are sent once, whatever happens to the identify messages", 1, eventSends[0]);
+            assertEquals(10, done.getSentMessages());
+            assertEquals(10, done.getRejectedMessages());
+            assertEquals(Long.toString(input.length()), new String(java.nio.file.Files.readAllBytes(checkpoint.toPath()), "utf-8"));
+            api.close();
+        } finally {
+            input.delete();
+            checkpoint.delete();
+        }
+    }
+
+    public void testFileSinkRotatesAndCompresses() throws Exception {
+        File directory = File.createTempFile("connecto-sink", "");
+        directory.delete();
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(byte[] data, int length, String contentType, String endpointUrl) throws IOException {
+                throw new IOException("Batches should go to the file sink");
+            }
+        };
+        try {
+            FileSink sink = new FileSink(directory, "events", FileSink.Format.NDJSON);
+            sink.setMaxFileBytes(4096);
+            api.setFileSink(sink);
+
+            ClientDelivery delivery = new ClientDelivery();
+            Set<String> expected = new HashSet<String>();
+            for (int i = 0; i < 60; i++) {
+                JSONObject message = mBuilder.event("user " + i, "sync", "track", mSampleProps);
+                expected.add(message.getString("messageId"));
+                delivery.addMessage(message);
+            }
+            api.deliver(delivery);
+            for (int i = 0; i < 60; i++) {
+                EncodedMessage message = mBuilder.writer().event("user " + i, "queued", "track", mSampleProps);
+                expected.add(message.getMessageId());
+                assertTrue(api.enqueue(message));
+            }
+            api.close();
+            sink.close();
+
+            assertTrue("Files are rotated by size", sink.getRotatedFiles().size() > 1);
+            Set<String> written = new HashSet<String>();
+            for (File file : directory.listFiles()) {
+                assertTrue(file.getName().startsWith("events-") && file.getName().endsWith(".ndjson"));
+                java.io.BufferedReader lines = new java.io.BufferedReader(new java.io.InputStreamReader(new java.io.FileInputStream(file), "utf-8"));
+                String line;
+                while ((line = lines.readLine()) != null) {
+                    assertTrue(written.add(new JSONObject(line).getString("messageId")));
+                }
+                lines.close();
+                file.delete();
+            }
+            assertEquals(expected, written);
+            assertTrue("Deleted files are forgotten", sink.getRotatedFiles().isEmpty());
+
+            FileSink batches = new FileSink(directory, "batches", FileSink.Format.BATCHES);
+            batches.setMaxFileBytes(1);
+            batches.setCompressRotated(true);
+            api = new ConnectoAPI("http://localhost:3003/import", "", 12000);
+            api.setFileSink(batches);
+            for (int i = 0; i < 3; i++) {
+                ClientDelivery single = new ClientDelivery();
+                single.addMessage(mBuilder.event("user " + i, "batched", "track", mSampleProps));
+                api.deliver(single);
+            }
+            batches.close();
+
+            File[] files = directory.listFiles();
+            Arrays.sort(files);
+            assertEquals(3, files.length);
+            assertTrue(files[0].getName().endsWith(".batches.gz"));
+            assertTrue(files[2].getName().endsWith(".batches"));
+            assertEquals("Compressed files are listed by their final name", Arrays.asList(files[0], files[1]), batches.getRotatedFiles());
+            java.io.DataInputStream in = new java.io.DataInputStream(new java.util.zip.GZIPInputStream(new java.io.FileInputStream(files[0])));
+            byte[] record = new byte[in.readInt()];
+            in.readFully(record);
+            assertEquals(-1, in.read());
+            in.close();
+            JSONArray decoded = new JSONArray(new String(record, "utf-8"));
+            assertEquals("user 0", decoded.getJSONObject(0).getString("profileId"));
+        } finally {
+            api.close();
+            File[] files = directory.listFiles();
+            for (int i = 0; files != null && i < files.length; i++) {
+                files[i].delete();
+            }
+            directory.delete();
+        }
+    }
+
+    public void testIdentifyDeltaSuppression() throws Exception {
+        final List<JSONObject> sent = new ArrayList<JSONObject>();
+        final boolean[] refuse = { false };
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) throws IOException {
+                if (refuse[0]) {
+                    throw new IOException("ingest unavailable");
+                }
+                try {
+                    JSONArray batch = new JSONArray(dataString);
+                    synchronized (sent) {
+                        for (int i = 0; i < batch.length(); i++) {
+                            sent.add(batch.getJSONObject(i));
+                        }
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+                }
+                return true;
+            }
+        };
+        api.setIdentifyDeltaSuppression(100);
+
+        JSONObject traits = new JSONObject();
+        traits.put("plan", "free");
+        traits.put("seats", 3);
+        api.sendMessage(mBuilder.identify("a user", "identify", traits));
+        api.sendMessage(mBuilder.identify("a user", "identify", traits));
+        assertEquals(1, sent.size());
+        assertEquals(2, sent.get(0).getJSONObject("traits").length());
+        assertEquals(1, api.getSuppressedIdentifies());
+
+        traits.put("plan", "pro");
+        JSONObject upgrade = mBuilder.identify("a user", "identify", traits);
+        api.sendMessage(upgrade);
+        assertEquals("Only the changed trait is sent", "{\"plan\":\"pro\"}", sent.get(1).getJSONObject("traits").toString());
+        assertEquals("The caller's message is not changed", 2, upgrade.getJSONObject("traits").length());
+        assertEquals(upgrade.getString("messageId"), sent.get(1).getString("messageId"));
+
+        traits.put("plan", "team");
+        refuse[0] = true;
+        try {
+            api.sendMessage(mBuilder.identify("a user", "identify", traits));
+            fail("The send should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        refuse[0] = false;
+        api.enqueue(mBuilder.writer().identify("a user", "identify", traits));
+        api.enqueue(mBuilder.identify("another user", "identify", traits));
+        api.flush();
+        assertEquals("A refused change is sent again", 4, sent.size());
+        assertEquals("team", sent.get(2).getJSONObject("traits").getString("plan"));
+        assertEquals(1, sent.get(2).getJSONObject("traits").length());
+
+        api.enqueue(mBuilder.identify("another user", "identify", traits));
+        api.flush();
+        assertEquals(4, sent.size());
+        assertEquals(2, api.getSuppressedIdentifies());
+        api.close();
+    }
+
+    public void testForwardingAgent() throws Exception {
+        final Set<String> received = new HashSet<String>();
+        ConnectoAPI agentApi = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(String dataString, String endpointUrl) throws IOException {
+                try {
+                    JSONArray batch = new JSONArray(dataString);
+                    synchronized (received) {
+                        for (int i = 0; i < batch.length(); i++) {
+                            received.add(batch.getJSONObject(i).getString("messageId"));
+                        }
+                    }
+                } catch (JSONException e) {
+                    throw new RuntimeException(e);
+                }
+                return true;
+            }
+        };
+        ForwardingAgent agent = new ForwardingAgent(agentApi, 0, "agent token");
+        agent.start();
+
+        Set<String> expected = new HashSet<String>();
+        for (int process = 0; process < 2; process++) {
+            ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+                @Override
+                public boolean sendData(byte[] data, int length, String contentType, String endpointUrl) throws IOException {
+                    throw new IOException("Batches should go to the agent");
+                }
+            };
+            api.setForwardingAgent(agent.getAddress(), "agent token");
+            JSONObject event = mBuilder.event("user " + process, "job finished", "track", mSampleProps);
+            expected.add(event.getString("messageId"));
+            api.sendMessage(event);
+            for (int i = 0; i < 20; i++) {
+                EncodedMessage queued = mBuilder.writer().event("user " + process, "row", "track", mSampleProps);
+                expected.add(queued.getMessageId());
+                api.enqueue(queued);
+            }
+            api.close();
+        }
+        assertEquals(42, agent.getForwardedMessages());
+
+        // A frame with an invalid message is refused whole, so resending it can't duplicate the valid one.
+        ForwardingAgent.Connection connection = new ForwardingAgent.Connection(agent.getAddress(), "agent token");
+        JSONObject valid = mBuilder.event("user", "job finished", "track", mSampleProps);
+        JSONObject invalid = new JSONObject();
+        invalid.put("type", "unknown");
+        byte[] frame = (valid + "\n" + invalid + "\n").getBytes("utf-8");
+        assertEquals(0, connection.forward(frame, frame.length, 1000, 1000));
+        assertEquals(42, agent.getForwardedMessages());
+        frame = (valid + "\n").getBytes("utf-8");
+        assertEquals(1, connection.forward(frame, frame.length, 1000, 1000));
+        expected.add(valid.getString("messageId"));
+        connection.close();
+
+        ForwardingAgent.Connection intruder = new ForwardingAgent.Connection(agent.getAddress(), "wrong token");
+        try {
+            intruder.forward(frame, frame.length, 1000, 1000);
+            fail("The agent should refuse connections without its token");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(43, agent.getForwardedMessages());
+
+        agent.close();
+        assertEquals(expected, received);
+    }
+
+    public void testDeliveryListenerReportsEachBatch() throws Exception {
+        final boolean[] refuse = { false };
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000) {
+            @Override
+            public boolean sendData(byte[] data, int length, String contentType, String endpointUrl) throws IOException {
+                if (refuse[0]) {
+                    throw new IOException("ingest unavailable");
+                }
+                return true;
+            }
+        };
+        final List<DeliveryResult> results = new ArrayList<DeliveryResult>();
+        final Set<String> callbackThreads = new HashSet<String>();
+        api.setDeliveryListener(new DeliveryListener() {
+            @Override
+            public void onDelivery(DeliveryResult result) {
+                synchronized (results) {
+                    results.add(result);
+                    callbackThreads.add(Thread.currentThread().getName());
+                }
+            }
+        });
+
+        ClientDelivery accepted = new ClientDelivery();
+        JSONObject first = mBuilder.event("a user", "checkout", "track", mSampleProps);
+        JSONObject second = mBuilder.event("a user", "refund", "track", mSampleProps);
+        accepted.addMessage(first);
+        accepted.addMessage(second);
+        api.deliver(accepted);
+
+        refuse[0] = true;
+        JSONObject failed = mBuilder.event("a user", "lost", "track", mSampleProps);
+        try {
+            api.sendMessage(failed);
+            fail("The send should fail");
+        } catch (IOException e) {
+            // expected
+        }
+        refuse[0] = false;
+
+        Set<String> queuedIds = new HashSet<String>();
+        for (int i = 0; i < 3; i++) {
+            EncodedMessage queued = mBuilder.writer().event("user " + i, "queued", "track", mSampleProps);
+            queuedIds.add(queued.getMessageId());
+            api.enqueue(queued);
+        }
+        api.close();
+
+        assertEquals(3, results.size());
+        DeliveryResult sync = results.get(0);
+        assertNull(sync.getLaneName());
+        assertEquals(Arrays.asList(first.getString("messageId"), second.getString("messageId")), sync.getAcceptedMessageIds());
+        assertTrue(sync.isAccepted());
+        assertEquals(1, sync.getAttempts());
+
+        DeliveryResult refused = results.get(1);
+        assertFalse(refused.isAccepted());
+        assertEquals(Arrays.asList(failed.getString("messageId")), refused.getFailedMessageIds());
+        assertTrue(refused.getAcceptedMessageIds().isEmpty());
+
+        DeliveryResult queued = results.get(2);
+        assertEquals("default", queued.getLaneName());
+        assertEquals(queuedIds, new HashSet<String>(queued.getAcceptedMessageIds()));
+        assertTrue(queued.getLatency().toNanos() > 0);
+        assertEquals(Collections.singleton("connecto-delivery-callbacks"), callbackThreads);
+
+        try {
+            api.setDeliveryListener(new DeliveryListener() {
+                @Override
+                public void onDelivery(DeliveryResult result) {
+                }
+            });
+            fail("A listener can't be set once the client is closed");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testTimeoutSetters() {
+        ConnectoAPI api = new ConnectoAPI("http://localhost:3003/import", "", 12000);
+        api.setConnectTimeout(500);
+        api.setReadTimeout(0);
+        assertEquals(500, api.getConnectTimeout());
+        assertEquals(0, api.getReadTimeout());
+        try {
+            api.setConnectTimeout(-1);
+            fail("Negative timeouts should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            api.setReadTimeout(-1);
+            fail("Negative timeouts should be refused");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(500, api.getConnectTimeout());
+        assertEquals(0, api.getReadTimeout());
+    }
+
     private void checkModifiers(JSONObject built) {
         try {
             JSONObject msg = built;
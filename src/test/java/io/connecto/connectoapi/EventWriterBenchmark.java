@@ -0,0 +1,61 @@
+package io.connecto.connectoapi;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares the heap allocated and time taken per tracked event by MessageBuilder,
+ * serialized as it would be when queued, and by EventWriter.
+ *
+ * Not run by the test suite. Needs a JVM whose ThreadMXBean reports allocated bytes. Run with:
+ * <pre>
+ * {@code
+ *     mvn test-compile exec:java -Dexec.mainClass=io.connecto.connectoapi.EventWriterBenchmark -Dexec.classpathScope=test
+ * }
+ * </pre>
+ */
+public class EventWriterBenchmark {
+
+    public static void main(String[] args) throws JSONException {
+        final MessageBuilder builder = new MessageBuilder("a token");
+        final JSONObject props = new JSONObject();
+        props.put("count", 7);
+        props.put("price", 19.99);
+        props.put("sku", "SKU-7");
+
+        measure("MessageBuilder", new Runnable() {
+            @Override
+            public void run() {
+                sSink += builder.event("a distinct id", "Add to Cart", "track", props).toString().length();
+            }
+        });
+        measure("EventWriter", new Runnable() {
+            @Override
+            public void run() {
+                sSink += builder.writer().event("a distinct id", "Add to Cart", "track", props).size();
+            }
+        });
+    }
+
+    private static void measure(String name, Runnable event) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            event.run();
+        }
+        long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_EVENTS; i++) {
+            event.run();
+        }
+        double nanosPerEvent = (double) (System.nanoTime() - start) / MEASURED_EVENTS;
+        double bytesPerEvent = (double) (threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore) / MEASURED_EVENTS;
+
+        System.out.printf("%-16s %8.1f allocated bytes/event %10.1f ns/event%n", name, bytesPerEvent, nanosPerEvent);
+    }
+
+    private static final int WARMUP_EVENTS = 200000;
+    private static final int MEASURED_EVENTS = 500000;
+    private static long sSink = 0;
+}